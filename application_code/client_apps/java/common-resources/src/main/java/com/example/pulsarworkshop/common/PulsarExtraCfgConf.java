@@ -2,6 +2,7 @@ package com.example.pulsarworkshop.common;
 
 import com.example.pulsarworkshop.common.exception.InvalidParamException;
 import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.FileBasedConfiguration;
@@ -13,13 +14,22 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.pulsar.client.api.*;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.client.api.schema.GenericSchema;
 import org.apache.pulsar.client.impl.MultiplierRedeliveryBackoff;
+import org.apache.pulsar.common.schema.KeyValueEncodingType;
+import org.apache.pulsar.common.schema.SchemaInfo;
+import org.apache.pulsar.common.schema.SchemaType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class PulsarExtraCfgConf {
@@ -29,6 +39,7 @@ public class PulsarExtraCfgConf {
     ///////
     // Valid configuration categories
     enum CONF_CATEGORY {
+        Client("client"),
         Schema("schema"),
         Producer("producer"),
         Consumer("consumer"),
@@ -41,6 +52,52 @@ public class PulsarExtraCfgConf {
         }
     }
 
+    /**
+     * Built-in performance profiles: matching client, producer and consumer defaults (raw values,
+     * as in the extra config file). A setting in the extra config file always overrides the
+     * profile default.
+     */
+    public enum PERF_PROFILE {
+        Throughput("throughput",
+                Map.of("memoryLimitBytes", String.valueOf(256L * 1024 * 1024),
+                        "numIoThreads", String.valueOf(Runtime.getRuntime().availableProcessors()),
+                        "connectionsPerBroker", "2"),
+                Map.of("batchingEnabled", "true",
+                        "batchingMaxPublishDelayMicros", "10000",
+                        "batchingMaxMessages", "10000",
+                        "maxPendingMessages", "10000",
+                        "blockIfQueueFull", "true",
+                        "compressionType", "LZ4"),
+                Map.of("receiverQueueSize", "5000",
+                        "acknowledgementsGroupTimeMicros", "100000")),
+        Latency("latency",
+                Map.of("memoryLimitBytes", String.valueOf(64L * 1024 * 1024),
+                        "numIoThreads", String.valueOf(Runtime.getRuntime().availableProcessors()),
+                        "useTcpNoDelay", "true"),
+                Map.of("batchingEnabled", "true",
+                        "batchingMaxPublishDelayMicros", "100",
+                        "blockIfQueueFull", "true"),
+                Map.of("receiverQueueSize", "100",
+                        "acknowledgementsGroupTimeMicros", "0"));
+
+        public final String label;
+        private final Map<String, String> clientDefaults;
+        private final Map<String, String> producerDefaults;
+        private final Map<String, String> consumerDefaults;
+
+        PERF_PROFILE(String label,
+                     Map<String, String> clientDefaults,
+                     Map<String, String> producerDefaults,
+                     Map<String, String> consumerDefaults) {
+            this.label = label;
+            this.clientDefaults = clientDefaults;
+            this.producerDefaults = producerDefaults;
+            this.consumerDefaults = consumerDefaults;
+        }
+    }
+
+    private final Map<String, String> clientConfMapRaw = new HashMap<>();
+    private final Map<String, Object> clientConfMapTgt = new HashMap<>();
     private final Map<String, String> schemaConfMapRaw = new HashMap<>();
     private final Map<String, String> producerConfMapRaw = new HashMap<>();
     private final Map<String, Object> producerConfMapTgt = new HashMap<>();
@@ -49,18 +106,46 @@ public class PulsarExtraCfgConf {
     private final Map<String, String> readerConfMapRaw = new HashMap<>();
     private final Map<String, Object> readerConfMapTgt = new HashMap<>();
 
+    // Message schema built from the "schema.xxx" settings; "byte[]" when "schema.type" is not set
+    private Schema<?> msgSchema = Schema.BYTES;
+    // Only set for 'avro' or 'json' schema type. The key schema is only set when
+    // "schema.key.definition" is set, and the message schema is then a KeyValue schema.
+    private org.apache.avro.Schema keyAvroSchema;
+    private org.apache.avro.Schema valueAvroSchema;
+    private GenericSchema<GenericRecord> keyGenericSchema;
+    private GenericSchema<GenericRecord> valueGenericSchema;
+
     public PulsarExtraCfgConf(File extraCfgFile) throws WorkshopRuntimException {
+        this(extraCfgFile, null);
+    }
+
+    public PulsarExtraCfgConf(File extraCfgFile, PERF_PROFILE perfProfile) throws WorkshopRuntimException {
 
         if (extraCfgFile != null) {
             //////////////////
             // Read related Pulsar client configuration settings from a file
             readRawCfgFromFile(extraCfgFile);
 
+            //////////////////
+            // Build the message schema from the "schema.xxx" settings
+            buildMsgSchema(extraCfgFile);
+        }
+
+        //////////////////
+        // Fill in the performance profile defaults that are not set in the file
+        if (perfProfile != null) {
+            perfProfile.clientDefaults.forEach(clientConfMapRaw::putIfAbsent);
+            perfProfile.producerDefaults.forEach(producerConfMapRaw::putIfAbsent);
+            perfProfile.consumerDefaults.forEach(consumerConfMapRaw::putIfAbsent);
+        }
+
+        if ((extraCfgFile != null) || (perfProfile != null)) {
             //////////////////
             //  Convert the raw configuration map (<String,String>) to the required map (<String,Object>)
+            clientConfMapTgt.putAll(ConfConverter.convertStdRawClientConf(clientConfMapRaw));
             producerConfMapTgt.putAll(ConfConverter.convertStdRawProducerConf(producerConfMapRaw));
             consumerConfMapTgt.putAll(ConfConverter.convertStdRawConsumerConf(consumerConfMapRaw));
-            // TODO: Reader API is not enabled at the moment. Revisit when needed
+            readerConfMapTgt.putAll(ConfConverter.convertStdRawReaderConf(readerConfMapRaw));
 
             //////////////////
             // Ignores the following Pulsar producer/consumer configurations since
@@ -69,6 +154,8 @@ public class PulsarExtraCfgConf {
 
             consumerConfMapTgt.remove("topicNames");
             consumerConfMapTgt.remove("topicsPattern");
+
+            readerConfMapTgt.remove("topicNames");
         }
     }
 
@@ -96,8 +183,13 @@ public class PulsarExtraCfgConf {
 
                 if (!StringUtils.isBlank(confVal)) {
 
+                    // Get client specific configuration settings, removing "client." prefix
+                    // <<< https://pulsar.apache.org/docs/client-libraries-java/#client >>>
+                    if (StringUtils.startsWith(confKey, CONF_CATEGORY.Client.label)) {
+                        clientConfMapRaw.put(confKey.substring(CONF_CATEGORY.Client.label.length() + 1), confVal);
+                    }
                     // Get schema specific configuration settings, removing "schema." prefix
-                    if (StringUtils.startsWith(confKey, CONF_CATEGORY.Schema.label)) {
+                    else if (StringUtils.startsWith(confKey, CONF_CATEGORY.Schema.label)) {
                         schemaConfMapRaw.put(confKey.substring(CONF_CATEGORY.Schema.label.length() + 1), confVal);
                     }
                     // Get producer specific configuration settings, removing "producer." prefix
@@ -126,13 +218,101 @@ public class PulsarExtraCfgConf {
     }
 
 
-    public Map<String, String> getSchemaConfMapRaw() { return  this.schemaConfMapRaw; }
-    public Map<String, String> getProducerConfMapRaw() { return this.producerConfMapRaw; }
-    public Map<String, Object> getProducerConfMapTgt() { return this.producerConfMapTgt; }
-    public Map<String, String> getConsumerConfMapRaw() { return this.consumerConfMapRaw; }
-    public Map<String, Object> getConsumerConfMapTgt() { return this.consumerConfMapTgt; }
-    public Map<String, String> getReaderConfMapRaw() { return this.readerConfMapRaw; }
-    public Map<String, Object> getReaderConfMapTgt() { return this.readerConfMapTgt; }
+    /**
+     * Builds the message schema:
+     * - schema.type not set: byte[]
+     * - schema.type 'avro' or 'json': a generic record schema from the "schema.value.definition" file,
+     *   or a KeyValue schema (SEPARATED encoding, so the key is also the message key) when
+     *   "schema.key.definition" is set as well
+     *
+     * A definition file is looked up as a file path (as is, then relative to the extra config
+     * file folder) and then as a class path resource.
+     */
+    private void buildMsgSchema(File extraCfgFile) {
+        String schemaTypeStr = schemaConfMapRaw.get("type");
+        if (StringUtils.isBlank(schemaTypeStr)) {
+            return;
+        }
+
+        SchemaType schemaType;
+        if (StringUtils.equalsIgnoreCase(schemaTypeStr, "avro")) {
+            schemaType = SchemaType.AVRO;
+        } else if (StringUtils.equalsIgnoreCase(schemaTypeStr, "json")) {
+            schemaType = SchemaType.JSON;
+        } else {
+            throw new InvalidParamException(
+                    ConfConverter.getInvalidConfValStr("type", schemaTypeStr,
+                            CONF_CATEGORY.Schema.label, "avro, json"));
+        }
+
+        String valueDefinition = schemaConfMapRaw.get("value.definition");
+        if (StringUtils.isBlank(valueDefinition)) {
+            throw new InvalidParamException(
+                    "\"schema.value.definition\" must be set for the schema type: " + schemaTypeStr);
+        }
+        String valueSchemaJson = readSchemaDefinition(extraCfgFile, valueDefinition);
+        valueAvroSchema = new org.apache.avro.Schema.Parser().parse(valueSchemaJson);
+        valueGenericSchema = Schema.generic(SchemaInfo.builder()
+                .name(valueAvroSchema.getName())
+                .type(schemaType)
+                .schema(valueSchemaJson.getBytes(StandardCharsets.UTF_8))
+                .properties(new HashMap<>())
+                .build());
+        msgSchema = valueGenericSchema;
+
+        String keyDefinition = schemaConfMapRaw.get("key.definition");
+        if (StringUtils.isNotBlank(keyDefinition)) {
+            String keySchemaJson = readSchemaDefinition(extraCfgFile, keyDefinition);
+            keyAvroSchema = new org.apache.avro.Schema.Parser().parse(keySchemaJson);
+            keyGenericSchema = Schema.generic(SchemaInfo.builder()
+                    .name(keyAvroSchema.getName())
+                    .type(schemaType)
+                    .schema(keySchemaJson.getBytes(StandardCharsets.UTF_8))
+                    .properties(new HashMap<>())
+                    .build());
+            msgSchema = Schema.KeyValue(keyGenericSchema, valueGenericSchema, KeyValueEncodingType.SEPARATED);
+        }
+    }
+
+    private static String readSchemaDefinition(File extraCfgFile, String definition) {
+        try {
+            File definitionFile = new File(definition);
+            if (!definitionFile.isFile() && !definitionFile.isAbsolute()) {
+                definitionFile = new File(extraCfgFile.getAbsoluteFile().getParentFile(), definition);
+            }
+            if (definitionFile.isFile()) {
+                return Files.readString(definitionFile.toPath());
+            }
+
+            try (InputStream inputStream = PulsarExtraCfgConf.class.getResourceAsStream(
+                    StringUtils.prependIfMissing(definition, "/"))) {
+                if (inputStream != null) {
+                    return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new WorkshopRuntimException("Can't read the schema definition file: " + definition);
+        }
+
+        throw new InvalidParamException("Can't find the schema definition file: " + definition);
+    }
+
+    public Schema<?> getMsgSchema() { return this.msgSchema; }
+    public org.apache.avro.Schema getKeyAvroSchema() { return this.keyAvroSchema; }
+    public org.apache.avro.Schema getValueAvroSchema() { return this.valueAvroSchema; }
+    public GenericSchema<GenericRecord> getKeyGenericSchema() { return this.keyGenericSchema; }
+    public GenericSchema<GenericRecord> getValueGenericSchema() { return this.valueGenericSchema; }
+
+    // The settings are read-only once parsed, so that one instance can be shared by the whole app
+    public Map<String, String> getClientConfMapRaw() { return Collections.unmodifiableMap(this.clientConfMapRaw); }
+    public Map<String, Object> getClientConfMapTgt() { return Collections.unmodifiableMap(this.clientConfMapTgt); }
+    public Map<String, String> getSchemaConfMapRaw() { return Collections.unmodifiableMap(this.schemaConfMapRaw); }
+    public Map<String, String> getProducerConfMapRaw() { return Collections.unmodifiableMap(this.producerConfMapRaw); }
+    public Map<String, Object> getProducerConfMapTgt() { return Collections.unmodifiableMap(this.producerConfMapTgt); }
+    public Map<String, String> getConsumerConfMapRaw() { return Collections.unmodifiableMap(this.consumerConfMapRaw); }
+    public Map<String, Object> getConsumerConfMapTgt() { return Collections.unmodifiableMap(this.consumerConfMapTgt); }
+    public Map<String, String> getReaderConfMapRaw() { return Collections.unmodifiableMap(this.readerConfMapRaw); }
+    public Map<String, Object> getReaderConfMapTgt() { return Collections.unmodifiableMap(this.readerConfMapTgt); }
 
 
     public String toString() {
@@ -298,9 +478,11 @@ public class PulsarExtraCfgConf {
             Map.entry("authPluginClassName", "String"),
             Map.entry("authParams", "String"),
             Map.entry("operationTimeoutMs", "long"),
-            Map.entry("statsIntervalSeconds", "String"),
+            Map.entry("statsIntervalSeconds", "long"),
             Map.entry("numIoThreads", "int"),
             Map.entry("numListenerThreads", "int"),
+            Map.entry("connectionsPerBroker", "int"),
+            Map.entry("memoryLimitBytes", "long"),
             Map.entry("useTcpNoDelay", "boolean"),
             Map.entry("enableTls", "boolean"),
             Map.entry("tlsTrustCertsFilePath", "String"),
@@ -349,6 +531,7 @@ public class PulsarExtraCfgConf {
                 Map.entry("batchingMaxMessages", "int"),
                 Map.entry("batchingEnabled", "boolean"),
                 Map.entry("chunkingEnabled", "boolean"),
+                Map.entry("batcherBuilder", "BatcherBuilder"),
                 Map.entry("compressionType", "CompressionType"),
                 Map.entry("initialSubscriptionName", "string")
         );
@@ -361,15 +544,70 @@ public class PulsarExtraCfgConf {
              */
             // TODO: Skip the following producer configuration items for now because they're not really
             //       needed at the moment. Add support for them when needed.
-            //       * messageRoutingMode
-            //       * hashingScheme
             //       * cryptoFailureAction
 
+            // "messageRoutingMode"
+            // - expecting the following values: 'RoundRobinPartition' (default), 'SinglePartition'
+            //   ('CustomPartition' is not supported since it requires a custom message router class)
+            String confKeyName = "messageRoutingMode";
+            String confVal = pulsarProducerConfMapRaw.get(confKeyName);
+            String expectedVal = MessageRoutingMode.RoundRobinPartition + ", " + MessageRoutingMode.SinglePartition;
+
+            if (StringUtils.isNotBlank(confVal)) {
+                try {
+                    MessageRoutingMode messageRoutingMode = MessageRoutingMode.valueOf(confVal);
+                    if (messageRoutingMode == MessageRoutingMode.CustomPartition) {
+                        throw new IllegalArgumentException();
+                    }
+                    producerConfObjMap.put(confKeyName, messageRoutingMode);
+                } catch (Exception e) {
+                    throw new InvalidParamException(
+                            getInvalidConfValStr(confKeyName, confVal,
+                                    CONF_CATEGORY.Producer.label, expectedVal));
+                }
+            }
+
+            // "hashingScheme"
+            // - expecting the following values: 'JavaStringHash' (default), 'Murmur3_32Hash'
+            confKeyName = "hashingScheme";
+            confVal = pulsarProducerConfMapRaw.get(confKeyName);
+            expectedVal = Arrays.stream(HashingScheme.values()).map(Enum::name).collect(Collectors.joining(", "));
+
+            if (StringUtils.isNotBlank(confVal)) {
+                try {
+                    producerConfObjMap.put(confKeyName, HashingScheme.valueOf(confVal));
+                } catch (Exception e) {
+                    throw new InvalidParamException(
+                            getInvalidConfValStr(confKeyName, confVal,
+                                    CONF_CATEGORY.Producer.label, expectedVal));
+                }
+            }
+
+            // "batcherBuilder"
+            // - expecting the following values: 'DEFAULT' (default), 'KEY_BASED'
+            //   'KEY_BASED' groups the messages of a batch by message key, so that a batch only
+            //   contains messages of the same key (required for keyed messages and Key_Shared consumers)
+            confKeyName = "batcherBuilder";
+            confVal = pulsarProducerConfMapRaw.get(confKeyName);
+            expectedVal = "DEFAULT, KEY_BASED";
+
+            if (StringUtils.isNotBlank(confVal)) {
+                if (StringUtils.equalsIgnoreCase(confVal, "DEFAULT")) {
+                    producerConfObjMap.put(confKeyName, BatcherBuilder.DEFAULT);
+                } else if (StringUtils.equalsIgnoreCase(confVal, "KEY_BASED")) {
+                    producerConfObjMap.put(confKeyName, BatcherBuilder.KEY_BASED);
+                } else {
+                    throw new InvalidParamException(
+                            getInvalidConfValStr(confKeyName, confVal,
+                                    CONF_CATEGORY.Producer.label, expectedVal));
+                }
+            }
+
             // "compressionType"
             // - expecting the following values: 'LZ4', 'ZLIB', 'ZSTD', 'SNAPPY'
-            String confKeyName = "compressionType";
-            String confVal = pulsarProducerConfMapRaw.get(confKeyName);
-            String expectedVal = getValidCompressionTypeList();
+            confKeyName = "compressionType";
+            confVal = pulsarProducerConfMapRaw.get(confKeyName);
+            expectedVal = getValidCompressionTypeList();
 
             if (StringUtils.isNotBlank(confVal)) {
                 if (StringUtils.containsIgnoreCase(expectedVal, confVal)) {
@@ -423,13 +661,15 @@ public class PulsarExtraCfgConf {
                 Map.entry("patternAutoDiscoveryPeriod", "int"),
                 Map.entry("regexSubscriptionMode", "RegexSubscriptionMode"),
                 Map.entry("deadLetterPolicy", "DeadLetterPolicy"),
+                Map.entry("retryEnable", "boolean"),
                 Map.entry("autoUpdatePartitions", "boolean"),
                 Map.entry("replicateSubscriptionState", "boolean"),
                 Map.entry("negativeAckRedeliveryBackoff", "RedeliveryBackoff"),
                 Map.entry("ackTimeoutRedeliveryBackoff", "RedeliveryBackoff"),
                 Map.entry("autoAckOldestChunkedMessageOnQueueFull", "boolean"),
                 Map.entry("maxPendingChunkedMessage", "int"),
-                Map.entry("expireTimeOfIncompleteChunkedMessageMillis", "long")
+                Map.entry("expireTimeOfIncompleteChunkedMessageMillis", "long"),
+                Map.entry("batchReceivePolicy", "BatchReceivePolicy")
         );
 
         public static Map<String, Object> convertStdRawConsumerConf(Map<String, String> pulsarConsumerConfMapRaw) {
@@ -521,7 +761,7 @@ public class PulsarExtraCfgConf {
 
             if (StringUtils.isNotBlank(confVal)) {
                 try {
-                    Map<String, String> dlqPolicyMap = mapper.readValue(confVal, Map.class);
+                    Map<String, String> dlqPolicyMap = readJsonStringMap(mapper, confVal);
 
                     // Empty map value is considered as no value
                     if (!dlqPolicyMap.isEmpty()) {
@@ -542,7 +782,7 @@ public class PulsarExtraCfgConf {
                         }
 
                         String maxRedeliverCountStr = dlqPolicyMap.get("maxRedeliverCount");
-                        if (!NumberUtils.isCreatable(maxRedeliverCountStr)) {
+                        if (!NumberUtils.isDigits(maxRedeliverCountStr) || (NumberUtils.toInt(maxRedeliverCountStr) <= 0)) {
                             valid = false;
                         }
 
@@ -581,6 +821,7 @@ public class PulsarExtraCfgConf {
             // "negativeAckRedeliveryBackoff" or "ackTimeoutRedeliveryBackoff"
             // - expecting the value is a JSON string has the format:
             //   {"minDelayMs":"<int_value>", "maxDelayMs":"<int_value>", "multiplier":"<double_value>"}
+            // - a missing item keeps the Pulsar default (10000 ms, 600000 ms, 2.0)
             String[] redeliveryBackoffConfigSet = {
                     "negativeAckRedeliveryBackoff",
                     "ackTimeoutRedeliveryBackoff"
@@ -595,7 +836,7 @@ public class PulsarExtraCfgConf {
 
                 if (StringUtils.isNotBlank(confVal)) {
                     try {
-                        Map<String, String> redliveryBackoffMap = mapper.readValue(confVal, Map.class);
+                        Map<String, String> redliveryBackoffMap = readJsonStringMap(mapper, confVal);
 
                         // Empty map value is considered as no value
                         if (!redliveryBackoffMap.isEmpty()) {
@@ -619,13 +860,24 @@ public class PulsarExtraCfgConf {
                                     (StringUtils.isNotBlank(multiplierStr) && !NumberUtils.isCreatable(multiplierStr))) {
                                 valid = false;
                             }
+                            if (StringUtils.isNotBlank(multiplierStr) && (NumberUtils.toDouble(multiplierStr) < 1)) {
+                                valid = false;
+                            }
 
                             if (valid) {
-                                RedeliveryBackoff redeliveryBackoff = MultiplierRedeliveryBackoff.builder()
-                                        .minDelayMs(NumberUtils.toLong(minDelayMsStr))
-                                        .maxDelayMs(NumberUtils.toLong(maxDelayMsStr))
-                                        .multiplier(NumberUtils.toDouble(multiplierStr))
-                                        .build();
+                                MultiplierRedeliveryBackoff.MultiplierRedeliveryBackoffBuilder builder =
+                                        MultiplierRedeliveryBackoff.builder();
+                                if (StringUtils.isNotBlank(minDelayMsStr))
+                                    builder.minDelayMs(NumberUtils.toLong(minDelayMsStr));
+
+                                if (StringUtils.isNotBlank(maxDelayMsStr))
+                                    builder.maxDelayMs(NumberUtils.toLong(maxDelayMsStr));
+
+                                if (StringUtils.isNotBlank(multiplierStr))
+                                    builder.multiplier(NumberUtils.toDouble(multiplierStr));
+
+                                // Fails on a negative min. delay, or a min. delay over the max. delay
+                                RedeliveryBackoff redeliveryBackoff = builder.build();
 
                                 consumerConfObjMap.put(confKey, redeliveryBackoff);
 
@@ -644,10 +896,109 @@ public class PulsarExtraCfgConf {
                 }
             }
 
+            // "batchReceivePolicy"
+            // - expecting the value is a JSON string has the format:
+            //   {"maxNumMessages":"<int_value>", "maxNumBytes":"<int_value>", "timeoutMs":"<int_value>"}
+            // - an unset item doesn't limit the batch; at least one item must be positive
+            confKeyName = "batchReceivePolicy";
+            confVal = pulsarConsumerConfMapRaw.get(confKeyName);
+            expectedVal = "{" +
+                    "\"maxNumMessages\":\"<int_value>\"," +
+                    "\"maxNumBytes\":\"<int_value>\"," +
+                    "\"timeoutMs\":\"<int_value>\"}";
+
+            if (StringUtils.isNotBlank(confVal)) {
+                try {
+                    Map<String, String> batchReceivePolicyMap = readJsonStringMap(mapper, confVal);
+
+                    // Empty map value is considered as no value
+                    if (!batchReceivePolicyMap.isEmpty()) {
+                        boolean valid = true;
+
+                        // The JSON key must be one of "maxNumMessages", "maxNumBytes", "timeoutMs"
+                        for (String key : batchReceivePolicyMap.keySet()) {
+                            if (!StringUtils.equalsAny(key, "maxNumMessages", "maxNumBytes", "timeoutMs")) {
+                                valid = false;
+                                break;
+                            }
+                        }
+
+                        String maxNumMessagesStr = batchReceivePolicyMap.get("maxNumMessages");
+                        String maxNumBytesStr = batchReceivePolicyMap.get("maxNumBytes");
+                        String timeoutMsStr = batchReceivePolicyMap.get("timeoutMs");
+
+                        if ((StringUtils.isNotBlank(maxNumMessagesStr) && !NumberUtils.isCreatable(maxNumMessagesStr)) ||
+                                (StringUtils.isNotBlank(maxNumBytesStr) && !NumberUtils.isCreatable(maxNumBytesStr)) ||
+                                (StringUtils.isNotBlank(timeoutMsStr) && !NumberUtils.isCreatable(timeoutMsStr))) {
+                            valid = false;
+                        }
+
+                        if (valid) {
+                            BatchReceivePolicy.Builder builder = BatchReceivePolicy.builder();
+                            if (StringUtils.isNotBlank(maxNumMessagesStr))
+                                builder.maxNumMessages(NumberUtils.toInt(maxNumMessagesStr));
+
+                            if (StringUtils.isNotBlank(maxNumBytesStr))
+                                builder.maxNumBytes(NumberUtils.toInt(maxNumBytesStr));
+
+                            if (StringUtils.isNotBlank(timeoutMsStr))
+                                builder.timeout(NumberUtils.toInt(timeoutMsStr), TimeUnit.MILLISECONDS);
+
+                            consumerConfObjMap.put(confKeyName, builder.build());
+                        } else {
+                            throw new InvalidParamException(
+                                    getInvalidConfValStr(confKeyName, confVal,
+                                            CONF_CATEGORY.Consumer.label, expectedVal));
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new InvalidParamException(
+                            getInvalidConfValStr(confKeyName, confVal,
+                                    CONF_CATEGORY.Consumer.label, expectedVal));
+                }
+            }
+
             return consumerConfObjMap;
         }
 
 
+        // https://pulsar.apache.org/docs/client-libraries-java/#configure-reader
+        // - "startMessageId" is not a config item: the reader apps set their start position themselves
+        private final static Map<String, String> validStdReaderConfKeyTypeMap = Map.ofEntries(
+                Map.entry("topicNames", "Set<String>"),
+                Map.entry("receiverQueueSize", "int"),
+                Map.entry("readerName", "String"),
+                Map.entry("subscriptionRolePrefix", "String"),
+                Map.entry("subscriptionName", "String"),
+                Map.entry("cryptoFailureAction", "ConsumerCryptoFailureAction"),
+                Map.entry("readCompacted", "boolean"),
+                Map.entry("resetIncludeHead", "boolean"),
+                Map.entry("poolMessages", "boolean")
+        );
+
+        public static Map<String, Object> convertStdRawReaderConf(Map<String, String> pulsarReaderConfMapRaw) {
+            Map<String, Object> readerConfObjMap = new HashMap<>();
+            setConfObjMapForPrimitives(readerConfObjMap, pulsarReaderConfMapRaw, validStdReaderConfKeyTypeMap);
+
+            // TODO: Skip the following reader configuration items for now because they're not really
+            //       needed right now. Add the support for them when needed.
+            //       * cryptoFailureAction
+            //       * keyHashRanges
+
+            return readerConfObjMap;
+        }
+
+
+        // Utility function
+        // - reads a JSON object of settings, e.g. {"maxNumMessages":"500"} or {"maxNumMessages":500},
+        //   with the values as strings
+        private static Map<String, String> readJsonStringMap(ObjectMapper mapper, String json) throws IOException {
+            Map<String, Object> jsonMap = mapper.readValue(json, new TypeReference<Map<String, Object>>() {});
+            Map<String, String> stringMap = new HashMap<>();
+            jsonMap.forEach((key, value) -> stringMap.put(key, (value != null) ? value.toString() : null));
+            return stringMap;
+        }
+
         // Utility function
         // - get configuration key names by the value type
         private static List<String> getStdConfKeyNameByValueType(Map<String, String> confKeyTypeMap, String tgtValType) {
@@ -9,12 +9,21 @@ import org.apache.pulsar.client.api.*;
 import com.example.pulsarworkshop.common.exception.HelpExitException;
 import com.example.pulsarworkshop.common.exception.InvalidParamException;
 import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+import com.example.pulsarworkshop.common.metrics.ClientStatsGauges;
+import com.example.pulsarworkshop.common.metrics.MetricsRegistry;
+import com.example.pulsarworkshop.common.metrics.MetricsReporter;
+import com.example.pulsarworkshop.common.utils.AppThreadFactory;
+import com.example.pulsarworkshop.common.utils.TokenBucketRateLimiter;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 abstract public class PulsarWorkshopCmdApp {
 
@@ -28,6 +37,32 @@ abstract public class PulsarWorkshopCmdApp {
     // -1 means to consume all available messages (indefinitely)    
     protected Integer numMsg = 20;
 
+    // (Producer apps only) Target message rate (msg/s)
+    // -1 means no rate limit (as fast as possible)
+    protected Integer msgRate = -1;
+
+    // Whether the application loop (and the message handlers of the apps that have them)
+    // run on platform threads or on virtual threads
+    protected AppThreadFactory.THREAD_MODE threadMode = AppThreadFactory.THREAD_MODE.Platform;
+
+    // (Optional) Built-in performance profile: client, producer and consumer defaults
+    protected PulsarExtraCfgConf.PERF_PROFILE perfProfile;
+
+    // Parsed once, on first use
+    private PulsarConnCfgConf pulsarConnCfgConf;
+    private PulsarExtraCfgConf pulsarExtraCfgConf;
+
+    private final static int DEFAULT_METRICS_INTERVAL_SEC = 10;
+
+    // Application metrics (send, receive, ack and error paths); reported on the console every
+    // "-metricsInterval" seconds, and optionally to a CSV file and a Prometheus endpoint
+    protected final MetricsRegistry metricsRegistry = new MetricsRegistry();
+    private final ClientStatsGauges clientStatsGauges = new ClientStatsGauges(metricsRegistry);
+    private int metricsIntervalSec = DEFAULT_METRICS_INTERVAL_SEC;
+    private File metricsCsvFile;
+    private int metricsPrometheusPort = -1;
+    private MetricsReporter metricsReporter;
+
     private CommandLine commandLine;
     private DefaultParser commandParser;
     private Options cliOptions = new Options();
@@ -47,6 +82,20 @@ abstract public class PulsarWorkshopCmdApp {
         addCommandLineOption(new Option("con","connFile", true, "\"client.conf\" file path."));
         addCommandLineOption(new Option("cfg", "cfgFile", true, "Extra config properties file path."));
         addCommandLineOption(new Option("as", "astra", false, "Whether to use Astra streaming."));
+        addCommandLineOption(new Option("rate", "msgRate", true,
+                "(Producer apps only) Target message rate in msg/s (default: no rate limit)."));
+        addCommandLineOption(new Option("thr", "threads", true,
+                "Thread type for the application loop and message handlers: \"platform\" (default) " +
+                "or \"virtual\" (requires a Java 21+ runtime)."));
+        addCommandLineOption(new Option("prf", "perfProfile", true,
+                "Performance profile with matching client, producer and consumer defaults: " +
+                "\"throughput\" or \"latency\". The extra config file settings take precedence."));
+        addCommandLineOption(new Option("mi", "metricsInterval", true,
+                "Metrics reporting interval in seconds (default: " + DEFAULT_METRICS_INTERVAL_SEC + ")."));
+        addCommandLineOption(new Option("mcsv", "metricsCsvFile", true,
+                "CSV file to append the metrics to, at each reporting interval."));
+        addCommandLineOption(new Option("mport", "metricsPort", true,
+                "Port of the Prometheus metrics endpoint (\"/metrics\"); not served by default."));
 
     }
 
@@ -58,7 +107,13 @@ abstract public class PulsarWorkshopCmdApp {
         int exitCode = 0;
         try {
             this.processBasicInputParams();
-            this.runApp();
+            this.startMetricsReporter(appName);
+            if (threadMode == AppThreadFactory.THREAD_MODE.Virtual) {
+                this.runAppOnAppThread();
+            }
+            else {
+                this.runApp();
+            }
         }
         catch (HelpExitException hee) {
             this.usage(appName);
@@ -76,6 +131,10 @@ abstract public class PulsarWorkshopCmdApp {
         }
         finally {
             this.termApp();
+            // Last report, with the final counts of the app
+            if (metricsReporter != null) {
+                metricsReporter.close();
+            }
         }
         
         return exitCode;
@@ -117,10 +176,106 @@ abstract public class PulsarWorkshopCmdApp {
         if (commandLine.hasOption("as")) {
             useAstraStreaming = true;
         }
+
+        // (Optional) CLI option for the target message rate
+        if (commandLine.hasOption("rate")) {
+            msgRate = processIntegerInputParam("rate");
+            if (msgRate <= 0) {
+                throw new InvalidParamException("Message rate must be a positive integer!");
+            }
+        }
+
+        // (Optional) CLI option for the performance profile
+        String perfProfileStr = processStringInputParam("prf");
+        if (StringUtils.isNotBlank(perfProfileStr)) {
+            perfProfile = Arrays.stream(PulsarExtraCfgConf.PERF_PROFILE.values())
+                    .filter(p -> StringUtils.equalsIgnoreCase(p.label, perfProfileStr))
+                    .findFirst()
+                    .orElseThrow(() -> new InvalidParamException("perfProfile",
+                            "must be either \"" + PulsarExtraCfgConf.PERF_PROFILE.Throughput.label +
+                            "\" or \"" + PulsarExtraCfgConf.PERF_PROFILE.Latency.label + "\""));
+        }
+
+        // (Optional) CLI options for the metrics reporting
+        if (commandLine.hasOption("mi")) {
+            metricsIntervalSec = processIntegerInputParam("mi");
+            if (metricsIntervalSec <= 0) {
+                throw new InvalidParamException("metricsInterval", "must be a positive integer");
+            }
+        }
+        String metricsCsvFileStr = processStringInputParam("mcsv");
+        if (StringUtils.isNotBlank(metricsCsvFileStr)) {
+            metricsCsvFile = new File(metricsCsvFileStr);
+        }
+        if (commandLine.hasOption("mport")) {
+            metricsPrometheusPort = processIntegerInputParam("mport");
+            if ((metricsPrometheusPort <= 0) || (metricsPrometheusPort > 65535)) {
+                throw new InvalidParamException("metricsPort", "must be a valid port number");
+            }
+        }
+
+        // (Optional) CLI option for the thread type
+        String threadModeStr = processStringInputParam("thr");
+        if (StringUtils.isNotBlank(threadModeStr)) {
+            if (StringUtils.equalsIgnoreCase(threadModeStr, AppThreadFactory.THREAD_MODE.Virtual.label)) {
+                if (!AppThreadFactory.isVirtualThreadSupported()) {
+                    throw new InvalidParamException("threads", "virtual threads require a Java 21+ runtime " +
+                            "(current: " + System.getProperty("java.version") + ")");
+                }
+                threadMode = AppThreadFactory.THREAD_MODE.Virtual;
+            }
+            else if (!StringUtils.equalsIgnoreCase(threadModeStr, AppThreadFactory.THREAD_MODE.Platform.label)) {
+                throw new InvalidParamException("threads", "must be either \"" +
+                        AppThreadFactory.THREAD_MODE.Platform.label + "\" or \"" +
+                        AppThreadFactory.THREAD_MODE.Virtual.label + "\"");
+            }
+        }
         
         processInputParams();
     }
 
+    private void startMetricsReporter(String appName) {
+        try {
+            metricsReporter = new MetricsReporter(
+                    metricsRegistry, appName, metricsIntervalSec, metricsCsvFile, metricsPrometheusPort);
+            metricsReporter.start();
+        }
+        catch (IOException ioe) {
+            throw new WorkshopRuntimException("Failed to set up the metrics reporting: " + ioe.getMessage());
+        }
+    }
+
+    // Runs "runApp()" on a thread of the configured type and waits for it
+    private void runAppOnAppThread() {
+        AtomicReference<RuntimeException> appError = new AtomicReference<>();
+        Thread appThread = createAppThreadFactory("app-main").newThread(() -> {
+            try {
+                this.runApp();
+            }
+            catch (RuntimeException re) {
+                appError.set(re);
+            }
+        });
+
+        appThread.start();
+        try {
+            appThread.join();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkshopRuntimException("Interrupted while waiting for the application thread!");
+        }
+
+        if (appError.get() != null) {
+            throw appError.get();
+        }
+    }
+
+    // Threads of the type set by "-threads", for the application loops and message handlers
+    protected ThreadFactory createAppThreadFactory(String namePrefix) {
+        return AppThreadFactory.create(threadMode, namePrefix);
+    }
+
     public Integer processIntegerInputParam(String optionName) {
         Option option = cliOptions.getOption(optionName);
         
@@ -137,6 +292,11 @@ abstract public class PulsarWorkshopCmdApp {
         return intVal;
     }
     
+    // For a flag option (without value): whether it is present on the command line
+    public boolean processBooleanInputParam(String optionName) {
+        return commandLine.hasOption(optionName);
+    }
+
     public String processStringInputParam(String optionName) {
 
     	Option option = cliOptions.getOption(optionName);
@@ -177,21 +337,31 @@ abstract public class PulsarWorkshopCmdApp {
         System.out.println();
     }
 
-    private PulsarConnCfgConf getPulsarConnCfgConf() {
-        PulsarConnCfgConf connCfgConf = null;
-        if (clientConnfFile != null) {
-            connCfgConf = new PulsarConnCfgConf(clientConnfFile);
+    // Returns null when no target message rate is set
+    protected TokenBucketRateLimiter createRateLimiter() {
+        if (msgRate > 0) {
+            return new TokenBucketRateLimiter(msgRate);
         }
-        if (connCfgConf == null) {
+        return null;
+    }
+
+    private synchronized PulsarConnCfgConf getPulsarConnCfgConf() {
+        if ((pulsarConnCfgConf == null) && (clientConnfFile != null)) {
+            pulsarConnCfgConf = new PulsarConnCfgConf(clientConnfFile);
+        }
+        if (pulsarConnCfgConf == null) {
             throw new WorkshopRuntimException(
                     "Can't properly read the Pulsar connection information from the \"client.conf\" file!");
         }
-        return connCfgConf;
+        return pulsarConnCfgConf;
     }
 
-    private PulsarExtraCfgConf getPulsarExtraCfgConf() {
-        PulsarExtraCfgConf extraCfgConf = new PulsarExtraCfgConf(clientConfigFile);
-        return extraCfgConf;
+    // The extra config file is parsed once; the returned settings are read-only
+    protected synchronized PulsarExtraCfgConf getPulsarExtraCfgConf() {
+        if (pulsarExtraCfgConf == null) {
+            pulsarExtraCfgConf = new PulsarExtraCfgConf(clientConfigFile, perfProfile);
+        }
+        return pulsarExtraCfgConf;
     }
 
 
@@ -199,6 +369,24 @@ abstract public class PulsarWorkshopCmdApp {
     throws PulsarClientException {
         ClientBuilder clientBuilder = PulsarClient.builder();
 
+        // Client tuning from the "client.xxx" settings (and the performance profile)
+        PulsarExtraCfgConf pulsarExtraCfgConf = getPulsarExtraCfgConf();
+        Map<String, Object> clientConfMap = new HashMap<>(pulsarExtraCfgConf.getClientConfMapTgt());
+
+        // Remove the following client conf parameters since the connection settings
+        // always come from the "client.conf" file (below)
+        clientConfMap.remove("serviceUrl");
+        clientConfMap.remove("authPluginClassName");
+        clientConfMap.remove("authParams");
+
+        clientBuilder.loadConf(clientConfMap);
+
+        // The client stats (see "registerClientStats()") are computed at the metrics reporting
+        // interval, unless "client.statsIntervalSeconds" is set (0 disables them)
+        if (!clientConfMap.containsKey("statsIntervalSeconds")) {
+            clientBuilder.statsInterval(metricsIntervalSec, TimeUnit.SECONDS);
+        }
+
         PulsarConnCfgConf connCfgConf = getPulsarConnCfgConf();
         Map<String, String> clientConnMap = connCfgConf.getClientConfMap();
 
@@ -235,8 +423,26 @@ abstract public class PulsarWorkshopCmdApp {
     protected Producer<?> createPulsarProducer(String topicName,
                                             PulsarClient pulsarClient)
     throws PulsarClientException {
-        ProducerBuilder<?> producerBuilder = pulsarClient.newProducer();
+        // The message schema is byte[] unless "schema.type" is set
+        ProducerBuilder<?> producerBuilder =
+                createPulsarProducerBuilder(topicName, pulsarClient, getPulsarExtraCfgConf().getMsgSchema());
+
+        Producer<?> producer = producerBuilder.create();
+        registerClientStats(producer);
+        return producer;
+    }
+
+    /**
+     * Producer builder with all the "producer.xxx" settings applied, for the apps that need
+     * another schema than the configured one or to adjust a setting before creating the
+     * producer. The producer stats aren't registered (see "registerClientStats()").
+     */
+    protected <T> ProducerBuilder<T> createPulsarProducerBuilder(String topicName,
+                                                                 PulsarClient pulsarClient,
+                                                                 Schema<T> schema)
+    {
         PulsarExtraCfgConf pulsarExtraCfgConf = getPulsarExtraCfgConf();
+        ProducerBuilder<T> producerBuilder = pulsarClient.newProducer(schema);
 
         if (pulsarExtraCfgConf != null) {
             Map<String, Object> producerConfMap = new HashMap<String, Object>();
@@ -246,12 +452,63 @@ abstract public class PulsarWorkshopCmdApp {
             // handled explicitly outside "loadConf()"
             producerConfMap.remove("topicName");
 
+            // "loadConf()" ignores the batcher builder setting; set it manually
+            BatcherBuilder batcherBuilder = (BatcherBuilder) producerConfMap.remove("batcherBuilder");
+            if (batcherBuilder != null) {
+                producerBuilder.batcherBuilder(batcherBuilder);
+            }
+
             producerBuilder.loadConf(producerConfMap);
         }
 
         producerBuilder.topic(topicName);
+        return producerBuilder;
+    }
+
+    /**
+     * Exports the Pulsar client stats of the producer, aggregated with those of the other
+     * producers of the app: "client.producer.xxx" (see {@link ClientStatsGauges}). The producer
+     * must be unregistered when closed.
+     */
+    protected void registerClientStats(Producer<?> producer) {
+        clientStatsGauges.register(producer);
+    }
+
+    protected void unregisterClientStats(Producer<?> producer) {
+        clientStatsGauges.unregister(producer);
+    }
+
+    // Same as above, for the consumer: "client.consumer.xxx"
+    protected void registerClientStats(Consumer<?> consumer) {
+        clientStatsGauges.register(consumer);
+    }
+
+    protected void unregisterClientStats(Consumer<?> consumer) {
+        clientStatsGauges.unregister(consumer);
+    }
+
+    /**
+     * Reader builder with all the "reader.xxx" settings applied. The start message id isn't set
+     * (it's up to the app).
+     */
+    protected ReaderBuilder<byte[]> createPulsarReaderBuilder(String topicName, PulsarClient pulsarClient)
+    {
+        ReaderBuilder<byte[]> readerBuilder = pulsarClient.newReader();
+        PulsarExtraCfgConf pulsarExtraCfgConf = getPulsarExtraCfgConf();
+
+        if (pulsarExtraCfgConf != null) {
+            Map<String, Object> readerConfMap = new HashMap<String, Object>();
+            readerConfMap.putAll(pulsarExtraCfgConf.getReaderConfMapTgt());
+
+            // Remove the following reader conf parameters since they'll be
+            // handled explicitly outside "loadConf()"
+            readerConfMap.remove("topicNames");
+
+            readerBuilder.loadConf(readerConfMap);
+        }
 
-        return producerBuilder.create();
+        readerBuilder.topic(topicName);
+        return readerBuilder;
     }
 
     public Consumer<?> createPulsarConsumer(String topicName,
@@ -260,7 +517,43 @@ abstract public class PulsarWorkshopCmdApp {
                                             SubscriptionType consumerSubscriptionType)
             throws PulsarClientException
     {
-        ConsumerBuilder<?> consumerBuilder = pulsarClient.newConsumer();
+        return createPulsarConsumer(topicName, pulsarClient, consumerSubscriptionName, consumerSubscriptionType, null);
+    }
+
+    /**
+     * With a message listener, the messages are pushed to the listener on the client's listener
+     * threads ("client.numListenerThreads") instead of being received by the application.
+     */
+    public Consumer<?> createPulsarConsumer(String topicName,
+                                            PulsarClient pulsarClient,
+                                            String consumerSubscriptionName,
+                                            SubscriptionType consumerSubscriptionType,
+                                            MessageListener<byte[]> messageListener)
+            throws PulsarClientException
+    {
+        ConsumerBuilder<byte[]> consumerBuilder = createPulsarConsumerBuilder(
+                topicName, pulsarClient, consumerSubscriptionName, consumerSubscriptionType);
+
+        if (messageListener != null) {
+            consumerBuilder.messageListener(messageListener);
+        }
+
+        Consumer<byte[]> consumer = consumerBuilder.subscribe();
+        registerClientStats(consumer);
+        return consumer;
+    }
+
+    /**
+     * Consumer builder with all the "consumer.xxx" settings applied, for the apps that need to
+     * adjust a setting before subscribing. The consumer stats aren't registered
+     * (see "registerClientStats()").
+     */
+    protected ConsumerBuilder<byte[]> createPulsarConsumerBuilder(String topicName,
+                                                                  PulsarClient pulsarClient,
+                                                                  String consumerSubscriptionName,
+                                                                  SubscriptionType consumerSubscriptionType)
+    {
+        ConsumerBuilder<byte[]> consumerBuilder = pulsarClient.newConsumer();
         PulsarExtraCfgConf pulsarExtraCfgConf = getPulsarExtraCfgConf();
 
         Map<String, Object> consumerConfMap = new HashMap<String, Object>();
@@ -274,14 +567,28 @@ abstract public class PulsarWorkshopCmdApp {
             consumerConfMap.remove("subscriptionName");
             consumerConfMap.remove("subscriptionType");
 
-            // TODO: It looks like loadConf() method can't handle the following settings properly.
-            //       Do these settings manually for now
-            //       - deadLetterPolicy
-            //       - negativeAckRedeliveryBackoff
-            //       - ackTimeoutRedeliveryBackoff
-            consumerConfMap.remove("deadLetterPolicy");
-            consumerConfMap.remove("negativeAckRedeliveryBackoff");
-            consumerConfMap.remove("ackTimeoutRedeliveryBackoff");
+            // "loadConf()" can't handle the dead letter policy and the redelivery backoffs
+            // (interface types); set them manually
+            DeadLetterPolicy deadLetterPolicy = (DeadLetterPolicy) consumerConfMap.remove("deadLetterPolicy");
+            if (deadLetterPolicy != null) {
+                consumerBuilder.deadLetterPolicy(deadLetterPolicy);
+            }
+            RedeliveryBackoff negativeAckRedeliveryBackoff =
+                    (RedeliveryBackoff) consumerConfMap.remove("negativeAckRedeliveryBackoff");
+            if (negativeAckRedeliveryBackoff != null) {
+                consumerBuilder.negativeAckRedeliveryBackoff(negativeAckRedeliveryBackoff);
+            }
+            RedeliveryBackoff ackTimeoutRedeliveryBackoff =
+                    (RedeliveryBackoff) consumerConfMap.remove("ackTimeoutRedeliveryBackoff");
+            if (ackTimeoutRedeliveryBackoff != null) {
+                consumerBuilder.ackTimeoutRedeliveryBackoff(ackTimeoutRedeliveryBackoff);
+            }
+
+            // "loadConf()" can't convert the batch receive policy object; set it manually
+            BatchReceivePolicy batchReceivePolicy = (BatchReceivePolicy) consumerConfMap.remove("batchReceivePolicy");
+            if (batchReceivePolicy != null) {
+                consumerBuilder.batchReceivePolicy(batchReceivePolicy);
+            }
 
             consumerBuilder.loadConf(consumerConfMap);
         }
@@ -290,19 +597,6 @@ abstract public class PulsarWorkshopCmdApp {
         consumerBuilder.subscriptionName(consumerSubscriptionName);
         consumerBuilder.subscriptionType(consumerSubscriptionType);
 
-        if (consumerConfMap.containsKey("deadLetterPolicy")) {
-            consumerBuilder.deadLetterPolicy(
-                    (DeadLetterPolicy) consumerConfMap.get("deadLetterPolicy"));
-        }
-        if (consumerConfMap.containsKey("negativeAckRedeliveryBackoff")) {
-            consumerBuilder.negativeAckRedeliveryBackoff(
-                    (RedeliveryBackoff) consumerConfMap.get("negativeAckRedeliveryBackoff"));
-        }
-        if (consumerConfMap.containsKey("ackTimeoutRedeliveryBackoff")) {
-            consumerBuilder.ackTimeoutRedeliveryBackoff(
-                    (RedeliveryBackoff) consumerConfMap.get("ackTimeoutRedeliveryBackoff"));
-        }
-
-        return consumerBuilder.subscribe();
+        return consumerBuilder;
     }
 }
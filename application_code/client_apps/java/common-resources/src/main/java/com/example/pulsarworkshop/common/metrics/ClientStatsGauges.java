@@ -0,0 +1,91 @@
+package com.example.pulsarworkshop.common.metrics;
+
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.ConsumerStats;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerStats;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Exports the Pulsar client stats of the registered producers and consumers as gauges,
+ * aggregated per role: "client.producer.xxx" and "client.consumer.xxx". The rates, queue sizes
+ * and totals are summed over the instances, while the send latency percentiles are those of
+ * the slowest instance. So the number of gauges doesn't grow with the number of instances
+ * (e.g. "-numConsumers 1000"), and the instances sharing a name (e.g. a configured
+ * "consumer.consumerName") are all counted.
+ *
+ * The rates and the send latency percentiles are those of the last client stats interval.
+ * A closed producer or consumer must be unregistered, so that it's no longer kept reachable.
+ */
+public class ClientStatsGauges {
+
+    private final MetricsRegistry metricsRegistry;
+
+    private final Set<Producer<?>> producers = ConcurrentHashMap.newKeySet();
+    private final Set<Consumer<?>> consumers = ConcurrentHashMap.newKeySet();
+    // The gauges are registered with the first instance of the role
+    private boolean producerGaugesRegistered = false;
+    private boolean consumerGaugesRegistered = false;
+
+    public ClientStatsGauges(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    public synchronized void register(Producer<?> producer) {
+        producers.add(producer);
+        if (!producerGaugesRegistered) {
+            producerGaugesRegistered = true;
+            metricsRegistry.gauge("client.producer.instances", producers::size);
+            metricsRegistry.gauge("client.producer.sendMsgsRate", () -> sumProducers(ProducerStats::getSendMsgsRate));
+            metricsRegistry.gauge("client.producer.sendBytesRate", () -> sumProducers(ProducerStats::getSendBytesRate));
+            metricsRegistry.gauge("client.producer.sendLatencyMs.p50", () -> maxProducers(ProducerStats::getSendLatencyMillis50pct));
+            metricsRegistry.gauge("client.producer.sendLatencyMs.p99", () -> maxProducers(ProducerStats::getSendLatencyMillis99pct));
+            metricsRegistry.gauge("client.producer.sendLatencyMs.p99_9", () -> maxProducers(ProducerStats::getSendLatencyMillis999pct));
+            metricsRegistry.gauge("client.producer.sendLatencyMs.max", () -> maxProducers(ProducerStats::getSendLatencyMillisMax));
+            metricsRegistry.gauge("client.producer.pendingQueueSize", () -> sumProducers(ProducerStats::getPendingQueueSize));
+            metricsRegistry.gauge("client.producer.totalMsgsSent", () -> sumProducers(ProducerStats::getTotalMsgsSent));
+            metricsRegistry.gauge("client.producer.totalSendFailed", () -> sumProducers(ProducerStats::getTotalSendFailed));
+        }
+    }
+
+    public void unregister(Producer<?> producer) {
+        producers.remove(producer);
+    }
+
+    public synchronized void register(Consumer<?> consumer) {
+        consumers.add(consumer);
+        if (!consumerGaugesRegistered) {
+            consumerGaugesRegistered = true;
+            metricsRegistry.gauge("client.consumer.instances", consumers::size);
+            metricsRegistry.gauge("client.consumer.rateMsgsReceived", () -> sumConsumers(ConsumerStats::getRateMsgsReceived));
+            metricsRegistry.gauge("client.consumer.rateBytesReceived", () -> sumConsumers(ConsumerStats::getRateBytesReceived));
+            metricsRegistry.gauge("client.consumer.msgNumInReceiverQueue", () -> sumConsumers(stats -> {
+                Integer msgNumInReceiverQueue = stats.getMsgNumInReceiverQueue();
+                return (msgNumInReceiverQueue != null) ? msgNumInReceiverQueue : 0;
+            }));
+            metricsRegistry.gauge("client.consumer.totalMsgsReceived", () -> sumConsumers(ConsumerStats::getTotalMsgsReceived));
+            metricsRegistry.gauge("client.consumer.totalAcksSent", () -> sumConsumers(ConsumerStats::getTotalAcksSent));
+            metricsRegistry.gauge("client.consumer.totalAcksFailed", () -> sumConsumers(ConsumerStats::getTotalAcksFailed));
+            metricsRegistry.gauge("client.consumer.totalReceivedFailed", () -> sumConsumers(ConsumerStats::getTotalReceivedFailed));
+        }
+    }
+
+    public void unregister(Consumer<?> consumer) {
+        consumers.remove(consumer);
+    }
+
+    private double sumProducers(ToDoubleFunction<ProducerStats> stat) {
+        return producers.stream().mapToDouble(producer -> stat.applyAsDouble(producer.getStats())).sum();
+    }
+
+    private double maxProducers(ToDoubleFunction<ProducerStats> stat) {
+        return producers.stream().mapToDouble(producer -> stat.applyAsDouble(producer.getStats())).max().orElse(0);
+    }
+
+    private double sumConsumers(ToDoubleFunction<ConsumerStats> stat) {
+        return consumers.stream().mapToDouble(consumer -> stat.applyAsDouble(consumer.getStats())).sum();
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.pulsarworkshop.common.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonic count (e.g. errors). Striped, so it can be updated from many threads
+ * (e.g. the Pulsar client callback threads) without contention.
+ */
+public class Counter {
+
+    private final LongAdder count = new LongAdder();
+
+    public void inc() {
+        count.increment();
+    }
+
+    public void inc(long n) {
+        count.add(n);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+}
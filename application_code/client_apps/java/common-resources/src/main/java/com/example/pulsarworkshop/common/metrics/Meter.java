@@ -0,0 +1,31 @@
+package com.example.pulsarworkshop.common.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count of events (e.g. messages sent) that is also reported as a rate:
+ * per reporting interval (see {@link MetricsReporter}) and since its creation.
+ */
+public class Meter {
+
+    private final LongAdder count = new LongAdder();
+    private final long startNanos = System.nanoTime();
+
+    public void mark() {
+        count.increment();
+    }
+
+    public void mark(long n) {
+        count.add(n);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    // Events per second since the creation of the meter
+    public double getMeanRate() {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        return getCount() * 1_000_000_000.0 / Math.max(elapsedNanos, 1);
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.pulsarworkshop.common.metrics;
+
+import com.example.pulsarworkshop.common.utils.LatencyRecorder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Named application metrics: counters, meters and latency histograms (in microseconds).
+ * A metric is created on its first lookup and the same instance is returned afterwards,
+ * so the apps can look them up once and keep them in fields. The names are dot separated
+ * and start with the operation, e.g. "send.messages", "receive.errors", "send.latency".
+ *
+ * Gauges are values read at each report, e.g. the Pulsar client producer/consumer stats.
+ */
+public class MetricsRegistry {
+
+    // Sorted by name, for stable report output
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, Meter> meters = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyRecorder> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public Meter meter(String name) {
+        return meters.computeIfAbsent(name, n -> new Meter());
+    }
+
+    public LatencyRecorder histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyRecorder());
+    }
+
+    // Replaces the gauge of the same name, if any
+    public void gauge(String name, DoubleSupplier valueSupplier) {
+        gauges.put(name, valueSupplier);
+    }
+
+    public Map<String, Counter> getCounters() { return counters; }
+    public Map<String, Meter> getMeters() { return meters; }
+    public Map<String, LatencyRecorder> getHistograms() { return histograms; }
+    public Map<String, DoubleSupplier> getGauges() { return gauges; }
+
+    public boolean isEmpty() {
+        return counters.isEmpty() && meters.isEmpty() && histograms.isEmpty() && gauges.isEmpty();
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.pulsarworkshop.common.metrics;
+
+import com.example.pulsarworkshop.common.utils.LatencyRecorder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically takes a snapshot of the {@link MetricsRegistry} and writes it to:
+ * - the console (log), one line per report
+ * - (optional) a CSV file, one row per metric and report:
+ *   "timestamp,metric,type,count,rate,value,p50,p99,p99.9,max"
+ * - (optional) a Prometheus text format endpoint ("http://<host>:<port>/metrics"), serving
+ *   the last snapshot
+ *
+ * The counts are totals, while the meter rates and the latency percentiles are those of the
+ * last reporting interval.
+ * The last report is taken when the reporter is closed.
+ */
+public class MetricsReporter implements Closeable {
+
+    private final static Logger logger = LoggerFactory.getLogger(MetricsReporter.class);
+
+    private final static String PROMETHEUS_PREFIX = "pulsar_workshop_";
+    private final static String CSV_HEADER = "timestamp,metric,type,count,rate,value,p50,p99,p99.9,max";
+
+    private final MetricsRegistry metricsRegistry;
+    private final String appName;
+    private final int intervalSec;
+
+    // Null when not enabled
+    private final PrintWriter csvWriter;
+    private final HttpServer prometheusServer;
+
+    // Values of the previous report, to compute the interval rates and histograms
+    private final Map<String, Long> lastMeterCounts = new HashMap<>();
+    private final Map<String, Histogram> lastAccumulatedHistograms = new HashMap<>();
+    private long lastReportNanos = System.nanoTime();
+
+    private volatile List<MetricSnapshot> lastSnapshots = new ArrayList<>();
+
+    private ScheduledExecutorService reportScheduler;
+    private boolean closed = false;
+
+    static class MetricSnapshot {
+        final String name;
+        final String type;
+        final long count;
+        // Meters only: events per second
+        final double rate;
+        // Gauges only
+        final double value;
+        // Histograms only: the latencies of the interval, and their sum since the start
+        final Histogram intervalHistogram;
+        final double accumulatedSum;
+
+        MetricSnapshot(String name, String type, long count, double rate, double value,
+                       Histogram intervalHistogram, double accumulatedSum) {
+            this.name = name;
+            this.type = type;
+            this.count = count;
+            this.rate = rate;
+            this.value = value;
+            this.intervalHistogram = intervalHistogram;
+            this.accumulatedSum = accumulatedSum;
+        }
+    }
+
+    public MetricsReporter(MetricsRegistry metricsRegistry,
+                           String appName,
+                           int intervalSec,
+                           File csvFile,
+                           int prometheusPort) throws IOException {
+        this.metricsRegistry = metricsRegistry;
+        this.appName = appName;
+        this.intervalSec = intervalSec;
+
+        if (csvFile != null) {
+            boolean newFile = !csvFile.exists() || (csvFile.length() == 0);
+            csvWriter = new PrintWriter(new FileWriter(csvFile, StandardCharsets.UTF_8, true));
+            if (newFile) {
+                csvWriter.println(CSV_HEADER);
+            }
+        }
+        else {
+            csvWriter = null;
+        }
+
+        if (prometheusPort > 0) {
+            prometheusServer = HttpServer.create(new InetSocketAddress(prometheusPort), 0);
+            prometheusServer.createContext("/metrics", this::servePrometheusText);
+            prometheusServer.start();
+            logger.info("Serving the metrics on http://localhost:{}/metrics", prometheusPort);
+        }
+        else {
+            prometheusServer = null;
+        }
+    }
+
+    public void start() {
+        reportScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reportScheduler.scheduleAtFixedRate(this::report, intervalSec, intervalSec, TimeUnit.SECONDS);
+    }
+
+    private synchronized void report() {
+        if (closed || metricsRegistry.isEmpty()) {
+            return;
+        }
+        try {
+            List<MetricSnapshot> snapshots = takeSnapshots();
+            lastSnapshots = snapshots;
+
+            logger.info("[Metrics] {}", getConsoleStr(snapshots));
+            if (csvWriter != null) {
+                writeCsvRows(snapshots);
+            }
+        }
+        catch (RuntimeException re) {
+            // Don't let the scheduler cancel the following reports
+            logger.warn("Failed to report the metrics: {}", re.getMessage());
+        }
+    }
+
+    private List<MetricSnapshot> takeSnapshots() {
+        long nowNanos = System.nanoTime();
+        double elapsedSec = Math.max(nowNanos - lastReportNanos, 1) / 1_000_000_000.0;
+        lastReportNanos = nowNanos;
+
+        List<MetricSnapshot> snapshots = new ArrayList<>();
+        metricsRegistry.getCounters().forEach((name, counter) ->
+                snapshots.add(new MetricSnapshot(name, "counter", counter.getCount(), 0, 0, null, 0)));
+
+        metricsRegistry.getMeters().forEach((name, meter) -> {
+            long count = meter.getCount();
+            long lastCount = lastMeterCounts.getOrDefault(name, 0L);
+            lastMeterCounts.put(name, count);
+            snapshots.add(new MetricSnapshot(name, "meter", count, (count - lastCount) / elapsedSec, 0, null, 0));
+        });
+
+        // The interval histogram is the difference of the accumulated ones, so that the
+        // apps can still read the intervals of their own recorders
+        metricsRegistry.getHistograms().forEach((name, latencyRecorder) -> {
+            Histogram accumulatedHistogram = latencyRecorder.getAccumulatedHistogram();
+            Histogram intervalHistogram = accumulatedHistogram.copy();
+            Histogram lastAccumulatedHistogram = lastAccumulatedHistograms.put(name, accumulatedHistogram);
+            if (lastAccumulatedHistogram != null) {
+                intervalHistogram.subtract(lastAccumulatedHistogram);
+            }
+            snapshots.add(new MetricSnapshot(name, "histogram", accumulatedHistogram.getTotalCount(), 0, 0,
+                    intervalHistogram, accumulatedHistogram.getMean() * accumulatedHistogram.getTotalCount()));
+        });
+
+        metricsRegistry.getGauges().forEach((name, valueSupplier) ->
+                snapshots.add(new MetricSnapshot(name, "gauge", 0, 0, valueSupplier.getAsDouble(), null, 0)));
+
+        return snapshots;
+    }
+
+    private static String getConsoleStr(List<MetricSnapshot> snapshots) {
+        StringBuilder sb = new StringBuilder();
+        for (MetricSnapshot snapshot : snapshots) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(snapshot.name).append('=');
+            switch (snapshot.type) {
+                case "meter":
+                    sb.append(snapshot.count).append(String.format(" (%.1f/s)", snapshot.rate));
+                    break;
+                case "histogram":
+                    sb.append('[').append(LatencyRecorder.getSummaryStr(snapshot.intervalHistogram)).append(']');
+                    break;
+                case "gauge":
+                    sb.append(getGaugeValueStr(snapshot.value));
+                    break;
+                default:
+                    sb.append(snapshot.count);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void writeCsvRows(List<MetricSnapshot> snapshots) {
+        long timestamp = System.currentTimeMillis();
+        for (MetricSnapshot snapshot : snapshots) {
+            csvWriter.print(timestamp + "," + snapshot.name + "," + snapshot.type + ",");
+            if (!snapshot.type.equals("gauge")) {
+                csvWriter.print(snapshot.count);
+            }
+            csvWriter.print(",");
+            if (snapshot.type.equals("meter")) {
+                csvWriter.print(String.format("%.3f", snapshot.rate));
+            }
+            csvWriter.print(",");
+            if (snapshot.type.equals("gauge")) {
+                csvWriter.print(getGaugeValueStr(snapshot.value));
+            }
+            csvWriter.print(",");
+            if (snapshot.intervalHistogram != null) {
+                Histogram histogram = snapshot.intervalHistogram;
+                csvWriter.print(histogram.getValueAtPercentile(50) + "," +
+                        histogram.getValueAtPercentile(99) + "," +
+                        histogram.getValueAtPercentile(99.9) + "," +
+                        histogram.getMaxValue());
+            }
+            else {
+                csvWriter.print(",,,");
+            }
+            csvWriter.println();
+        }
+        csvWriter.flush();
+    }
+
+    private void servePrometheusText(HttpExchange exchange) throws IOException {
+        byte[] response = getPrometheusText(lastSnapshots).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+
+    private String getPrometheusText(List<MetricSnapshot> snapshots) {
+        String labels = "app=\"" + appName + "\"";
+        StringBuilder sb = new StringBuilder();
+        for (MetricSnapshot snapshot : snapshots) {
+            String name = PROMETHEUS_PREFIX + snapshot.name.replaceAll("[^a-zA-Z0-9_]", "_");
+            switch (snapshot.type) {
+                case "histogram":
+                    name = name + "_us";
+                    sb.append("# TYPE ").append(name).append(" summary\n");
+                    for (double quantile : new double[]{0.5, 0.99, 0.999}) {
+                        sb.append(name).append("{").append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                                .append(snapshot.intervalHistogram.getValueAtPercentile(quantile * 100)).append('\n');
+                    }
+                    sb.append(name).append("_sum{").append(labels).append("} ")
+                            .append((long) snapshot.accumulatedSum).append('\n');
+                    sb.append(name).append("_count{").append(labels).append("} ").append(snapshot.count).append('\n');
+                    break;
+                case "gauge":
+                    sb.append("# TYPE ").append(name).append(" gauge\n");
+                    sb.append(name).append("{").append(labels).append("} ")
+                            .append(getGaugeValueStr(snapshot.value)).append('\n');
+                    break;
+                case "meter":
+                    sb.append("# TYPE ").append(name).append("_rate gauge\n");
+                    sb.append(name).append("_rate{").append(labels).append("} ")
+                            .append(String.format("%.3f", snapshot.rate)).append('\n');
+                    // The count of a meter is a counter
+                    appendPrometheusCounter(sb, name, labels, snapshot.count);
+                    break;
+                default:
+                    appendPrometheusCounter(sb, name, labels, snapshot.count);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendPrometheusCounter(StringBuilder sb, String name, String labels, long count) {
+        sb.append("# TYPE ").append(name).append("_total counter\n");
+        sb.append(name).append("_total{").append(labels).append("} ").append(count).append('\n');
+    }
+
+    // Whole numbers (e.g. counts, queue sizes) without decimals
+    private static String getGaugeValueStr(double value) {
+        if ((value == Math.rint(value)) && !Double.isInfinite(value)) {
+            return Long.toString((long) value);
+        }
+        return String.format("%.3f", value);
+    }
+
+    // Takes the last report, then stops the reporting
+    @Override
+    public synchronized void close() {
+        if (reportScheduler != null) {
+            reportScheduler.shutdownNow();
+        }
+        report();
+        closed = true;
+
+        if (csvWriter != null) {
+            csvWriter.close();
+        }
+        if (prometheusServer != null) {
+            prometheusServer.stop(0);
+        }
+    }
+}
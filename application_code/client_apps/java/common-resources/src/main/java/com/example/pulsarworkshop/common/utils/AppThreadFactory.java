@@ -0,0 +1,60 @@
+package com.example.pulsarworkshop.common.utils;
+
+import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads running the application loops and message handlers, either as platform
+ * threads or as virtual threads.
+ *
+ * The code base is compiled for Java 17, so the virtual threads (Java 21+) are created through
+ * reflection. They are only available when the application runs on a Java 21+ runtime.
+ */
+public class AppThreadFactory {
+
+    public enum THREAD_MODE {
+        Platform("platform"),
+        Virtual("virtual");
+
+        public final String label;
+
+        THREAD_MODE(String label) {
+            this.label = label;
+        }
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException nsme) {
+            return false;
+        }
+    }
+
+    // The thread names are "<namePrefix>-0", "<namePrefix>-1", ...
+    public static ThreadFactory create(THREAD_MODE threadMode, String namePrefix) {
+        if (threadMode == THREAD_MODE.Virtual) {
+            return createVirtualThreadFactory(namePrefix);
+        }
+
+        AtomicInteger threadIdx = new AtomicInteger();
+        return runnable -> new Thread(runnable, namePrefix + "-" + threadIdx.getAndIncrement());
+    }
+
+    // Thread.ofVirtual().name(namePrefix + "-", 0).factory()
+    private static ThreadFactory createVirtualThreadFactory(String namePrefix) {
+        try {
+            Class<?> threadBuilderClass = Class.forName("java.lang.Thread$Builder");
+            Object threadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            threadBuilder = threadBuilderClass.getMethod("name", String.class, long.class)
+                    .invoke(threadBuilder, namePrefix + "-", 0L);
+            return (ThreadFactory) threadBuilderClass.getMethod("factory").invoke(threadBuilder);
+        } catch (ReflectiveOperationException roe) {
+            throw new WorkshopRuntimException("Virtual threads require a Java 21+ runtime (current: " +
+                    System.getProperty("java.version") + ")");
+        }
+    }
+}
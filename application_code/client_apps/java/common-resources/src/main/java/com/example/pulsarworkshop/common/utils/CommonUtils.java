@@ -1,8 +1,20 @@
 package com.example.pulsarworkshop.common.utils;
 
+import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.json.JSONObject;
 
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAccessor;
+
 public class CommonUtils {
 
     public static String getJsonStrForCsv(String csvTitleLine, String csvItemLine) {
@@ -19,4 +31,47 @@ public class CommonUtils {
         return jsonObject.toString();
     }
 
+    /**
+     * Parses a timestamp value into epoch microseconds. Accepted formats:
+     * - a number of epoch seconds, milliseconds, microseconds or nanoseconds (with decimals or
+     *   in scientific notation, e.g. "1.5945120943859746E9"); the unit is guessed from the magnitude
+     * - an ISO-8601 date time with an offset (e.g. "2020-07-12T00:01:34.385Z" or "2020-07-11T19:01:34.385-05:00")
+     * - an ISO-8601 local date time (e.g. "2020-07-12 00:01:34.385"), taken as UTC
+     */
+    public static long parseTimestampToEpochMicros(String timestampStr) {
+        String tsStr = StringUtils.trim(timestampStr);
+
+        if (NumberUtils.isCreatable(tsStr)) {
+            double tsVal;
+            try {
+                tsVal = Double.parseDouble(tsStr);
+            } catch (NumberFormatException nfe) {
+                // e.g. hex ("0x1F") or a type suffix ("1L"), accepted by isCreatable() only
+                throw new WorkshopRuntimException("Unrecognized timestamp value: \"" + timestampStr + "\"");
+            }
+            double absTsVal = Math.abs(tsVal);
+            if (absTsVal < 1e11) {
+                return (long) (tsVal * 1_000_000);
+            } else if (absTsVal < 1e14) {
+                return (long) (tsVal * 1_000);
+            } else if (absTsVal < 1e17) {
+                return (long) tsVal;
+            } else {
+                return (long) (tsVal / 1_000);
+            }
+        }
+
+        try {
+            TemporalAccessor parsed = DateTimeFormatter.ISO_DATE_TIME.parse(StringUtils.replaceOnce(tsStr, " ", "T"));
+            Instant instant;
+            if (parsed.isSupported(ChronoField.OFFSET_SECONDS)) {
+                instant = OffsetDateTime.from(parsed).toInstant();
+            } else {
+                instant = LocalDateTime.from(parsed).toInstant(ZoneOffset.UTC);
+            }
+            return ChronoUnit.MICROS.between(Instant.EPOCH, instant);
+        } catch (DateTimeException | NullPointerException e) {
+            throw new WorkshopRuntimException("Unrecognized timestamp value: \"" + timestampStr + "\"");
+        }
+    }
 }
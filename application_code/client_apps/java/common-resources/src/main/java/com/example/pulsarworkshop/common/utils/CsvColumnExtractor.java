@@ -0,0 +1,66 @@
+package com.example.pulsarworkshop.common.utils;
+
+import com.example.pulsarworkshop.common.exception.InvalidParamException;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Extracts the value of one CSV column (e.g. as the message key) straight from a {@link CsvLineView}.
+ * The column index is resolved once from the CSV title line, and the value is decoded from the
+ * line bytes without splitting the row.
+ *
+ * Not thread safe; use one extractor per thread.
+ */
+public class CsvColumnExtractor {
+
+    private final static byte CSV_SEPARATOR = ',';
+
+    private final int columnIdx;
+    private byte[] scratchBuffer = new byte[64];
+
+    // The column can be given either by name (case-insensitive) or by 0 based index
+    public CsvColumnExtractor(String csvTitleLine, String column) {
+        String[] columnNames = StringUtils.splitPreserveAllTokens(csvTitleLine, (char)CSV_SEPARATOR);
+
+        int idx = -1;
+        for (int i = 0; i < columnNames.length; i++) {
+            if (StringUtils.equalsIgnoreCase(StringUtils.trim(columnNames[i]), column)) {
+                idx = i;
+                break;
+            }
+        }
+        if ((idx == -1) && StringUtils.isNumeric(column)) {
+            idx = Integer.parseInt(column);
+        }
+        if ((idx < 0) || (idx >= columnNames.length)) {
+            throw new InvalidParamException("No such column in the CSV title line: " + column);
+        }
+
+        this.columnIdx = idx;
+    }
+
+    public int getColumnIdx() { return this.columnIdx; }
+
+    // Returns the column value, or null if the row doesn't have this column
+    public String extract(CsvLineView csvRow) {
+        int rowLen = csvRow.length();
+        int valStart = 0;
+        for (int i = 0; i < columnIdx; i++) {
+            int sepIdx = csvRow.indexOf(CSV_SEPARATOR, valStart);
+            if (sepIdx < 0) {
+                return null;
+            }
+            valStart = sepIdx + 1;
+        }
+
+        int sepIdx = csvRow.indexOf(CSV_SEPARATOR, valStart);
+        int valLen = ((sepIdx < 0) ? rowLen : sepIdx) - valStart;
+        if (valLen > scratchBuffer.length) {
+            scratchBuffer = Arrays.copyOf(scratchBuffer, Math.max(valLen, scratchBuffer.length * 2));
+        }
+        csvRow.copyTo(valStart, scratchBuffer, 0, valLen);
+        return new String(scratchBuffer, 0, valLen, StandardCharsets.UTF_8);
+    }
+}
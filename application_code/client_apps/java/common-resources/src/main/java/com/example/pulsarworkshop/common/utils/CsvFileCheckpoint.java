@@ -0,0 +1,103 @@
+package com.example.pulsarworkshop.common.utils;
+
+import com.example.pulsarworkshop.common.exception.InvalidParamException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Progress checkpoint of a CSV workload file: the number of data rows (after the title line)
+ * that have been acknowledged by the broker, and the byte position of the next row.
+ *
+ * The acknowledgements must be reported in the send order ("markAcked()"). After a failed send
+ * ("markFailed()") the checkpoint no longer moves forward, so a restart re-sends the failed row.
+ * The checkpoint is written to a small local file, through a temporary file and an atomic rename.
+ */
+public class CsvFileCheckpoint {
+
+    private final static String KEY_WORKLOAD_FILE = "workloadFile";
+    private final static String KEY_LINE_NUMBER = "lineNumber";
+    private final static String KEY_POSITION = "position";
+
+    private final File checkpointFile;
+    private final String workloadFilePath;
+
+    private long ackedLines = 0;
+    // -1: nothing acknowledged yet
+    private long nextLinePos = -1;
+    private boolean sendFailed = false;
+    private boolean changed = false;
+
+    public CsvFileCheckpoint(File checkpointFile, File workloadFile) throws IOException {
+        this.checkpointFile = checkpointFile;
+        this.workloadFilePath = workloadFile.getCanonicalPath();
+
+        if (checkpointFile.exists()) {
+            Properties properties = new Properties();
+            try (InputStream inputStream = Files.newInputStream(checkpointFile.toPath())) {
+                properties.load(inputStream);
+            }
+
+            String savedWorkloadFilePath = properties.getProperty(KEY_WORKLOAD_FILE);
+            if (!StringUtils.equals(savedWorkloadFilePath, workloadFilePath)) {
+                throw new InvalidParamException("checkpointFile",
+                        "the checkpoint file \"" + checkpointFile + "\" belongs to another workload file (" +
+                        savedWorkloadFilePath + ")");
+            }
+            ackedLines = NumberUtils.toLong(properties.getProperty(KEY_LINE_NUMBER), 0);
+            nextLinePos = NumberUtils.toLong(properties.getProperty(KEY_POSITION), -1);
+        }
+    }
+
+    // Whether a previous run has acknowledged some rows
+    public synchronized boolean isResuming() { return nextLinePos >= 0; }
+    // Number of acknowledged data rows, i.e. the 0 based number of the next row to send
+    public synchronized long getLineNumber() { return ackedLines; }
+    // Byte position of the next row to send (in the uncompressed file)
+    public synchronized long getPosition() { return nextLinePos; }
+
+    /**
+     * Records that the data row "lineNumber" (0 based) has been acknowledged and that the
+     * next row starts at "nextLinePos".
+     */
+    public synchronized void markAcked(long lineNumber, long nextLinePos) {
+        if (!sendFailed && (lineNumber >= ackedLines)) {
+            this.ackedLines = lineNumber + 1;
+            this.nextLinePos = nextLinePos;
+            this.changed = true;
+        }
+    }
+
+    public synchronized void markFailed() {
+        sendFailed = true;
+    }
+
+    // Writes the checkpoint file if anything has been acknowledged since the last save
+    public synchronized void save() throws IOException {
+        if (!changed) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(KEY_WORKLOAD_FILE, workloadFilePath);
+        properties.setProperty(KEY_LINE_NUMBER, String.valueOf(ackedLines));
+        properties.setProperty(KEY_POSITION, String.valueOf(nextLinePos));
+
+        Path checkpointPath = checkpointFile.toPath().toAbsolutePath();
+        Path tmpPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(tmpPath)) {
+            properties.store(outputStream, "CSV workload checkpoint");
+        }
+        Files.move(tmpPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        changed = false;
+    }
+}
@@ -1,33 +1,44 @@
 package com.example.pulsarworkshop.common.utils;
 
-import org.apache.pulsar.shade.org.apache.commons.io.FileUtils;
-import org.apache.pulsar.shade.org.apache.commons.io.LineIterator;
+import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
 
 import java.io.File;
 import java.io.IOException;
 
+/**
+ * String based line scanner, kept for compatibility. It is backed by a {@link CsvFileScanner}
+ * (memory-mapped, or streaming for a compressed file); use that directly to avoid a String per line.
+ */
 public class CsvFileLineScanner {
 
     private File csvFile;
 
-    private LineIterator lineIterator;
+    private CsvFileScanner fileScanner;
 
     public CsvFileLineScanner(File file) throws IOException  {
         this.csvFile = file;
-        this.lineIterator = FileUtils.lineIterator(csvFile, "UTF-8");
+        this.fileScanner = CsvFileScanner.open(csvFile);
     }
 
     public boolean hasNextLine() {
-        return lineIterator.hasNext();
+        try {
+            return fileScanner.hasNextLine();
+        } catch (IOException ioe) {
+            throw new WorkshopRuntimException("Failed to read from the workload file: " + ioe.getMessage());
+        }
     }
 
     public String getNextLine() {
-        return lineIterator.nextLine();
+        try {
+            return fileScanner.getNextLine();
+        } catch (IOException ioe) {
+            throw new WorkshopRuntimException("Failed to read from the workload file: " + ioe.getMessage());
+        }
     }
 
     public void close() throws IOException {
-        if (lineIterator != null) {
-            lineIterator.close();
+        if (fileScanner != null) {
+            fileScanner.close();
         }
     }
 
@@ -0,0 +1,42 @@
+package com.example.pulsarworkshop.common.utils;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Line scanner of a CSV workload file. Lines are handed out as a reusable {@link CsvLineView}
+ * that is only valid until the next call of {@link #nextLineView()}.
+ */
+public interface CsvFileScanner {
+
+    boolean hasNextLine() throws IOException;
+
+    CsvLineView nextLineView() throws IOException;
+
+    // Number of (uncompressed) bytes consumed so far, i.e. the position of the next line
+    long getPosition();
+
+    void close() throws IOException;
+
+    default String getNextLine() throws IOException {
+        return nextLineView().toString();
+    }
+
+    // Compressed workload files (".gz", ".zst"/".zstd", ".lz4") can only be read as a stream
+    static boolean isCompressed(File file) {
+        return StringUtils.endsWithAny(StringUtils.lowerCase(file.getName()), ".gz", ".zst", ".zstd", ".lz4");
+    }
+
+    /**
+     * Opens a scanner on the whole file: a streaming (decompressing) scanner for a compressed
+     * file, otherwise a memory-mapped scanner.
+     */
+    static CsvFileScanner open(File file) throws IOException {
+        if (isCompressed(file)) {
+            return new StreamingCsvFileScanner(file);
+        }
+        return new MappedCsvFileScanner(file);
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.pulsarworkshop.common.utils;
+
+import com.example.pulsarworkshop.common.exception.InvalidParamException;
+import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+import org.apache.avro.Schema;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.client.api.schema.GenericRecordBuilder;
+import org.apache.pulsar.client.api.schema.GenericSchema;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Converts CSV rows into Pulsar {@link GenericRecord}s of an Avro record schema.
+ *
+ * The mapping from the schema fields to the CSV columns (matched by name, case-insensitive)
+ * and the value conversion of each field are compiled once from the CSV title line. Each row
+ * is then scanned once and written into one reused record builder.
+ *
+ * Supported field types: string, int, long, float, double, boolean, and their nullable unions
+ * (["null", <type>]). For a nullable field, an empty CSV value (or a missing CSV column) is
+ * converted to null. A non-nullable field without CSV column gets its schema default value,
+ * while a row too short to have a value for it is rejected.
+ *
+ * Not thread safe; use one mapper per thread.
+ */
+public class CsvGenericRecordMapper {
+
+    private final static byte CSV_SEPARATOR = ',';
+
+    enum FIELD_TYPE {
+        STRING, INT, LONG, FLOAT, DOUBLE, BOOLEAN
+    }
+
+    private final GenericRecordBuilder recordBuilder;
+
+    private final String[] fieldNames;
+    private final FIELD_TYPE[] fieldTypes;
+    private final boolean[] fieldNullable;
+    // CSV column index of each schema field; -1 if the CSV file has no such column
+    private final int[] fieldColumnIdx;
+
+    // Reused per row: start/end offset of each CSV column value
+    private final int[] columnStarts;
+    private final int[] columnEnds;
+    private byte[] scratchBuffer = new byte[256];
+
+    public CsvGenericRecordMapper(String csvTitleLine,
+                                  Schema avroSchema,
+                                  GenericSchema<GenericRecord> genericSchema) {
+        if (avroSchema.getType() != Schema.Type.RECORD) {
+            throw new InvalidParamException("Only Avro \"record\" schemas are supported: " + avroSchema.getFullName());
+        }
+
+        String[] columnNames = StringUtils.splitPreserveAllTokens(csvTitleLine, (char)CSV_SEPARATOR);
+        columnStarts = new int[columnNames.length];
+        columnEnds = new int[columnNames.length];
+
+        List<Schema.Field> fields = avroSchema.getFields();
+        fieldNames = new String[fields.size()];
+        fieldTypes = new FIELD_TYPE[fields.size()];
+        fieldNullable = new boolean[fields.size()];
+        fieldColumnIdx = new int[fields.size()];
+
+        for (int i = 0; i < fields.size(); i++) {
+            Schema.Field field = fields.get(i);
+            fieldNames[i] = field.name();
+
+            Schema fieldSchema = field.schema();
+            if (fieldSchema.getType() == Schema.Type.UNION) {
+                List<Schema> unionTypes = fieldSchema.getTypes();
+                boolean hasNull = unionTypes.stream().anyMatch(s -> s.getType() == Schema.Type.NULL);
+                List<Schema> nonNullTypes = unionTypes.stream().filter(s -> s.getType() != Schema.Type.NULL).toList();
+                if (!hasNull || nonNullTypes.size() != 1) {
+                    throw new InvalidParamException("Unsupported union type for Avro schema field: " + field.name());
+                }
+                fieldNullable[i] = true;
+                fieldSchema = nonNullTypes.get(0);
+            }
+            fieldTypes[i] = getFieldType(field.name(), fieldSchema);
+
+            fieldColumnIdx[i] = -1;
+            for (int j = 0; j < columnNames.length; j++) {
+                if (StringUtils.equalsIgnoreCase(StringUtils.trim(columnNames[j]), field.name())) {
+                    fieldColumnIdx[i] = j;
+                    break;
+                }
+            }
+            if ((fieldColumnIdx[i] == -1) && !fieldNullable[i] && !field.hasDefaultValue()) {
+                throw new InvalidParamException("No CSV column for the non-nullable Avro schema field: " + field.name());
+            }
+        }
+
+        this.recordBuilder = genericSchema.newRecordBuilder();
+    }
+
+    private static FIELD_TYPE getFieldType(String fieldName, Schema fieldSchema) {
+        switch (fieldSchema.getType()) {
+            case STRING:
+                return FIELD_TYPE.STRING;
+            case INT:
+                return FIELD_TYPE.INT;
+            case LONG:
+                return FIELD_TYPE.LONG;
+            case FLOAT:
+                return FIELD_TYPE.FLOAT;
+            case DOUBLE:
+                return FIELD_TYPE.DOUBLE;
+            case BOOLEAN:
+                return FIELD_TYPE.BOOLEAN;
+            default:
+                throw new InvalidParamException(
+                        "Unsupported Avro type \"" + fieldSchema.getType() + "\" for schema field: " + fieldName);
+        }
+    }
+
+    /**
+     * Converts the CSV row into a new record. The returned record can be sent right away;
+     * the builder is reused for the next row.
+     */
+    public GenericRecord toRecord(CsvLineView csvRow) {
+        // Locate all the column values in one pass
+        int rowLen = csvRow.length();
+        int pos = 0;
+        int numColumns = 0;
+        while ((numColumns < columnStarts.length) && (pos <= rowLen)) {
+            int sepIdx = csvRow.indexOf(CSV_SEPARATOR, pos);
+            int valEnd = (sepIdx < 0) ? rowLen : sepIdx;
+            columnStarts[numColumns] = pos;
+            columnEnds[numColumns] = valEnd;
+            numColumns++;
+            pos = valEnd + 1;
+        }
+
+        for (int i = 0; i < fieldNames.length; i++) {
+            int columnIdx = fieldColumnIdx[i];
+            if ((columnIdx == -1) || (columnIdx >= numColumns)) {
+                if (fieldNullable[i]) {
+                    recordBuilder.set(fieldNames[i], null);
+                } else if (columnIdx != -1) {
+                    // The reused builder would otherwise keep the previous row's value
+                    throw new WorkshopRuntimException(
+                            "No value for the non-nullable schema field \"" + fieldNames[i] + "\" in the CSV row: " + csvRow);
+                }
+                continue;
+            }
+
+            int valLen = columnEnds[columnIdx] - columnStarts[columnIdx];
+            if ((valLen == 0) && fieldNullable[i]) {
+                recordBuilder.set(fieldNames[i], null);
+                continue;
+            }
+
+            if (valLen > scratchBuffer.length) {
+                scratchBuffer = Arrays.copyOf(scratchBuffer, Math.max(valLen, scratchBuffer.length * 2));
+            }
+            csvRow.copyTo(columnStarts[columnIdx], scratchBuffer, 0, valLen);
+            String valStr = new String(scratchBuffer, 0, valLen, StandardCharsets.UTF_8);
+
+            recordBuilder.set(fieldNames[i], convertValue(i, valStr));
+        }
+
+        return recordBuilder.build();
+    }
+
+    private Object convertValue(int fieldIdx, String valStr) {
+        try {
+            switch (fieldTypes[fieldIdx]) {
+                case INT:
+                    return Integer.parseInt(valStr.trim());
+                case LONG:
+                    return Long.parseLong(valStr.trim());
+                case FLOAT:
+                    return Float.parseFloat(valStr);
+                case DOUBLE:
+                    return Double.parseDouble(valStr);
+                case BOOLEAN:
+                    return Boolean.parseBoolean(valStr.trim());
+                default:
+                    return valStr;
+            }
+        } catch (NumberFormatException nfe) {
+            throw new WorkshopRuntimException(
+                    "Can't convert the CSV value \"" + valStr + "\" to the type of schema field: " + fieldNames[fieldIdx]);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.pulsarworkshop.common.utils;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes CSV rows as flat JSON objects (all values as JSON strings), e.g.
+ *   header: "id,name"  +  row: "1,foo"  ==>  {"id":"1","name":"foo"}
+ *
+ * The escaped field names are compiled once from the CSV title line. Each row is then
+ * written byte by byte from the {@link CsvLineView} into a reusable UTF-8 output buffer,
+ * without any intermediate String, array or map.
+ *
+ * Compared with {@link CommonUtils#getJsonStrForCsv(String, String)}, empty values are kept
+ * (as "") and the fields are written in the header order. A row with fewer values than the
+ * header gets "" for the missing fields; extra values are ignored.
+ *
+ * Not thread safe; use one encoder per thread.
+ */
+public class CsvJsonRowEncoder {
+
+    private final static byte CSV_SEPARATOR = ',';
+
+    private final static byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // Per field: the pre-encoded prefix written before its value, e.g. {"id":" or ","name":"
+    private final byte[][] fieldPrefixes;
+    private final static byte[] ROW_SUFFIX = "\"}".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] outBuffer = new byte[1024];
+    private int outLength;
+
+    public CsvJsonRowEncoder(String csvTitleLine) {
+        String[] fieldNames = StringUtils.splitPreserveAllTokens(csvTitleLine, (char)CSV_SEPARATOR);
+
+        fieldPrefixes = new byte[fieldNames.length][];
+        for (int i = 0; i < fieldNames.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append((i == 0) ? "{\"" : "\",\"");
+            appendEscaped(sb, fieldNames[i]);
+            sb.append("\":\"");
+            fieldPrefixes[i] = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public int getFieldCount() { return fieldPrefixes.length; }
+
+    /**
+     * Encodes the CSV row into the internal buffer. The result is available through
+     * {@link #getBuffer()} / {@link #getLength()} until the next call.
+     */
+    public void encode(CsvLineView csvRow) {
+        outLength = 0;
+
+        int rowLen = csvRow.length();
+        int pos = 0;
+        for (int i = 0; i < fieldPrefixes.length; i++) {
+            writeBytes(fieldPrefixes[i]);
+
+            if (pos <= rowLen) {
+                int sepIdx = csvRow.indexOf(CSV_SEPARATOR, pos);
+                int valEnd = (sepIdx < 0) ? rowLen : sepIdx;
+                for (int j = pos; j < valEnd; j++) {
+                    writeEscapedByte(csvRow.byteAt(j));
+                }
+                pos = valEnd + 1;
+            }
+        }
+
+        if (fieldPrefixes.length == 0) {
+            writeByte((byte)'{');
+            writeByte((byte)'}');
+        } else {
+            writeBytes(ROW_SUFFIX);
+        }
+    }
+
+    public byte[] getBuffer() { return this.outBuffer; }
+    public int getLength() { return this.outLength; }
+
+    // Returns a copy of the last encoded row with the exact length (e.g. as a message payload)
+    public byte[] toBytes() {
+        return Arrays.copyOf(outBuffer, outLength);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (outLength + extra > outBuffer.length) {
+            outBuffer = Arrays.copyOf(outBuffer, Math.max(outBuffer.length * 2, outLength + extra));
+        }
+    }
+
+    private void writeByte(byte b) {
+        ensureCapacity(1);
+        outBuffer[outLength++] = b;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, outBuffer, outLength, bytes.length);
+        outLength += bytes.length;
+    }
+
+    // Multi-byte UTF-8 sequences never contain bytes below 0x80, so they are copied as is
+    private void writeEscapedByte(byte b) {
+        switch (b) {
+            case '"':
+            case '\\':
+                ensureCapacity(2);
+                outBuffer[outLength++] = '\\';
+                outBuffer[outLength++] = b;
+                break;
+            case '\n':
+                ensureCapacity(2);
+                outBuffer[outLength++] = '\\';
+                outBuffer[outLength++] = 'n';
+                break;
+            case '\r':
+                ensureCapacity(2);
+                outBuffer[outLength++] = '\\';
+                outBuffer[outLength++] = 'r';
+                break;
+            case '\t':
+                ensureCapacity(2);
+                outBuffer[outLength++] = '\\';
+                outBuffer[outLength++] = 't';
+                break;
+            default:
+                if ((b >= 0) && (b < 0x20)) {
+                    ensureCapacity(6);
+                    outBuffer[outLength++] = '\\';
+                    outBuffer[outLength++] = 'u';
+                    outBuffer[outLength++] = '0';
+                    outBuffer[outLength++] = '0';
+                    outBuffer[outLength++] = HEX_DIGITS[(b >> 4) & 0xF];
+                    outBuffer[outLength++] = HEX_DIGITS[b & 0xF];
+                } else {
+                    ensureCapacity(1);
+                    outBuffer[outLength++] = b;
+                }
+        }
+    }
+
+    private static void appendEscaped(StringBuilder sb, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int)c));
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+}
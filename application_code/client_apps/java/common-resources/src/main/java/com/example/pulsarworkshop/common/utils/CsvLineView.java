@@ -0,0 +1,55 @@
+package com.example.pulsarworkshop.common.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable, read-only view of one line (without the line terminator) inside a byte buffer.
+ * The view is only valid until the scanner that handed it out moves to the next line.
+ */
+public class CsvLineView {
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    void set(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public ByteBuffer getBuffer() { return this.buffer; }
+    public int getOffset() { return this.offset; }
+    public int length() { return this.length; }
+
+    public byte byteAt(int index) {
+        return buffer.get(offset + index);
+    }
+
+    // Returns the index (relative to the line start) of the first occurrence of the byte
+    // at or after "fromIndex", or -1 if not found
+    public int indexOf(byte b, int fromIndex) {
+        for (int i = fromIndex; i < length; i++) {
+            if (buffer.get(offset + i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void copyTo(int srcIndex, byte[] dst, int dstOffset, int len) {
+        buffer.get(offset + srcIndex, dst, dstOffset, len);
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[length];
+        copyTo(0, bytes, 0, length);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return new String(toBytes(), StandardCharsets.UTF_8);
+    }
+}
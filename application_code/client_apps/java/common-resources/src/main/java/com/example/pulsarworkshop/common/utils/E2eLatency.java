@@ -0,0 +1,39 @@
+package com.example.pulsarworkshop.common.utils;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end (publish to consume) latency, measured with the send timestamp that the producer
+ * stamps into a message property. The timestamp is the wall clock time in microseconds since
+ * the epoch, so the clocks of the producer and the consumer hosts must be synchronized (NTP);
+ * a negative latency caused by clock skew is recorded as 0.
+ *
+ * A Pulsar function in between keeps the timestamp as long as it copies the message properties
+ * to its output messages (see "AddMetadataFunc").
+ */
+public class E2eLatency {
+
+    public final static String SEND_TIMESTAMP_PROPERTY = "e2eSendTimeMicros";
+
+    public final static long NO_SEND_TIMESTAMP = -1;
+
+    public static long nowEpochMicros() {
+        Instant now = Instant.now();
+        return TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + TimeUnit.NANOSECONDS.toMicros(now.getNano());
+    }
+
+    // The send timestamp for an operation intended to start at "intendedNanos" (System.nanoTime() based),
+    // so that the end-to-end latency also includes the time spent waiting behind a late operation
+    public static String getSendTimestamp(long intendedNanos) {
+        long waitedMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedNanos);
+        return Long.toString(nowEpochMicros() - Math.max(waitedMicros, 0));
+    }
+
+    // Returns NO_SEND_TIMESTAMP when the message property is missing or invalid
+    public static long parseSendTimestamp(String propertyValue) {
+        return NumberUtils.toLong(propertyValue, NO_SEND_TIMESTAMP);
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.pulsarworkshop.common.utils;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: schedules a large number of delayed items (e.g. messages waiting for a
+ * retry) at a tick granularity, with O(1) scheduling. An item is put in the bucket of its
+ * deadline tick (modulo the wheel size); at each tick, a single worker thread hands the due
+ * items of the current bucket to the expiry handler. Items more than one wheel turn away stay
+ * in their bucket until their turn comes.
+ *
+ * The expiry handler runs on the worker thread and should only hand the items over (e.g. to
+ * a queue), so that it doesn't delay the next ticks.
+ */
+public class HashedTimingWheel<T> implements Closeable {
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<List<Entry<T>>> buckets;
+    private final Consumer<T> expiryHandler;
+
+    private final long startNanos = System.nanoTime();
+    // Guarded by "buckets"; the next tick to be processed by the worker
+    private long nextTick = 0;
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final Thread workerThread;
+    private volatile boolean closed = false;
+
+    private static class Entry<T> {
+        final T item;
+        final long deadlineTick;
+
+        Entry(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    // "wheelSize" is rounded up to a power of 2
+    public HashedTimingWheel(long tickDuration, TimeUnit unit, int wheelSize, Consumer<T> expiryHandler) {
+        if ((tickDuration <= 0) || (wheelSize <= 0)) {
+            throw new IllegalArgumentException("The tick duration and the wheel size must be positive");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        int numBuckets = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        this.mask = numBuckets - 1;
+        this.buckets = new ArrayList<>(numBuckets);
+        for (int i = 0; i < numBuckets; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        this.expiryHandler = expiryHandler;
+
+        workerThread = new Thread(this::runWorker, "timing-wheel");
+        workerThread.setDaemon(true);
+        workerThread.start();
+    }
+
+    // The item is handed to the expiry handler within one tick after the delay
+    public void schedule(T item, long delay, TimeUnit unit) {
+        long deadlineNanos = System.nanoTime() - startNanos + unit.toNanos(Math.max(delay, 0));
+        // Rounded up, so that the item never expires early
+        long deadlineTick = (deadlineNanos + tickNanos - 1) / tickNanos;
+
+        synchronized (buckets) {
+            deadlineTick = Math.max(deadlineTick, nextTick);
+            buckets.get((int) (deadlineTick & mask)).add(new Entry<>(item, deadlineTick));
+        }
+        size.incrementAndGet();
+    }
+
+    // Number of scheduled items not yet handed to the expiry handler (including the one being handed over)
+    public int size() {
+        return size.get();
+    }
+
+    private void runWorker() {
+        List<T> dueItems = new ArrayList<>();
+        while (!closed) {
+            long tick;
+            synchronized (buckets) {
+                tick = nextTick;
+            }
+            // Wait for the end of the tick
+            long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch (InterruptedException ie) {
+                    return;
+                }
+            }
+
+            synchronized (buckets) {
+                Iterator<Entry<T>> iterator = buckets.get((int) (tick & mask)).iterator();
+                while (iterator.hasNext()) {
+                    Entry<T> entry = iterator.next();
+                    if (entry.deadlineTick <= tick) {
+                        iterator.remove();
+                        dueItems.add(entry.item);
+                    }
+                }
+                nextTick = tick + 1;
+            }
+
+            // Counted until handed over, so that "size()" plus the handler's queue never misses an item
+            for (T item : dueItems) {
+                try {
+                    expiryHandler.accept(item);
+                }
+                finally {
+                    size.decrementAndGet();
+                }
+            }
+            dueItems.clear();
+        }
+    }
+
+    // Stops the wheel; the items still scheduled are dropped
+    @Override
+    public void close() {
+        closed = true;
+        workerThread.interrupt();
+        try {
+            workerThread.join();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
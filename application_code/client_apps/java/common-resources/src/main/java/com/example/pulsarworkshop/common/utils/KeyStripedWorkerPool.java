@@ -0,0 +1,108 @@
+package com.example.pulsarworkshop.common.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Fixed pool of worker threads, each one with its own bounded queue ("stripe"). The items with
+ * the same key always go to the same stripe, so they are handled in submission order, while
+ * the items of different keys are handled in parallel. Items without a key are spread over
+ * the stripes in a round-robin way.
+ *
+ * "submit()" blocks when the stripe queue is full, which pushes back on the submitting thread.
+ */
+public class KeyStripedWorkerPool<T> implements AutoCloseable {
+
+    private final static Logger logger = LoggerFactory.getLogger(KeyStripedWorkerPool.class);
+
+    private final static long POLL_TIMEOUT_MS = 100;
+
+    private final List<BlockingQueue<T>> stripeQueues;
+    private final Thread[] workerThreads;
+    private final Consumer<T> itemHandler;
+
+    private volatile boolean closing = false;
+    // Only used by the submitting thread
+    private int nextUnkeyedStripe = 0;
+
+    public KeyStripedWorkerPool(String namePrefix, int numWorkers, int queueCapacity, Consumer<T> itemHandler) {
+        this(AppThreadFactory.create(AppThreadFactory.THREAD_MODE.Platform, namePrefix),
+                numWorkers, queueCapacity, itemHandler);
+    }
+
+    public KeyStripedWorkerPool(ThreadFactory threadFactory, int numWorkers, int queueCapacity, Consumer<T> itemHandler) {
+        this.itemHandler = itemHandler;
+        this.stripeQueues = new ArrayList<>(numWorkers);
+        this.workerThreads = new Thread[numWorkers];
+
+        for (int i = 0; i < numWorkers; i++) {
+            BlockingQueue<T> stripeQueue = new ArrayBlockingQueue<>(queueCapacity);
+            stripeQueues.add(stripeQueue);
+            workerThreads[i] = threadFactory.newThread(() -> runWorker(stripeQueue));
+            workerThreads[i].start();
+        }
+    }
+
+    public int getNumWorkers() { return workerThreads.length; }
+
+    // Keys with the same hash code always map to the same stripe; a null key means no ordering
+    public void submit(Object key, T item) throws InterruptedException {
+        int stripe;
+        if (key == null) {
+            stripe = nextUnkeyedStripe;
+            nextUnkeyedStripe = (nextUnkeyedStripe + 1) % stripeQueues.size();
+        } else {
+            stripe = Math.floorMod(spreadHash(key.hashCode()), stripeQueues.size());
+        }
+        stripeQueues.get(stripe).put(item);
+    }
+
+    // Mixes the hash code bits so that similar keys (e.g. "key-1", "key-2") spread evenly
+    private static int spreadHash(int hashCode) {
+        int h = hashCode * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void runWorker(BlockingQueue<T> stripeQueue) {
+        try {
+            while (true) {
+                T item = stripeQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (item != null) {
+                    // Any failure is logged and the worker goes on: a dead worker would block "submit()"
+                    // forever once its stripe queue is full
+                    try {
+                        itemHandler.accept(item);
+                    } catch (Throwable t) {
+                        logger.error("Unexpected error when handling an item", t);
+                    }
+                } else if (closing) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stops the workers once all the submitted items are handled. If interrupted, stops waiting
+    // for the workers and keeps the interrupt flag set.
+    @Override
+    public void close() {
+        closing = true;
+        try {
+            for (Thread workerThread : workerThreads) {
+                workerThread.join();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.pulsarworkshop.common.utils;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically logs the latencies recorded during the last interval and, optionally, writes
+ * each interval histogram to an HdrHistogram log (".hlog") file. The log files of several
+ * runs or applications can be merged and plotted later with the HdrHistogram tools
+ * (e.g. "HistogramLogProcessor").
+ */
+public class LatencyIntervalReporter implements Closeable {
+
+    private final static Logger logger = LoggerFactory.getLogger(LatencyIntervalReporter.class);
+
+    private final String name;
+    private final LatencyRecorder latencyRecorder;
+    private final int intervalSec;
+    // Null when no histogram log file is written
+    private final HistogramLogWriter histogramLogWriter;
+
+    private ScheduledExecutorService reportScheduler;
+    private boolean closed = false;
+
+    public LatencyIntervalReporter(String name, LatencyRecorder latencyRecorder, int intervalSec, File histogramLogFile)
+            throws FileNotFoundException {
+        this.name = name;
+        this.latencyRecorder = latencyRecorder;
+        this.intervalSec = intervalSec;
+
+        if (histogramLogFile != null) {
+            long startTimeMillis = System.currentTimeMillis();
+            histogramLogWriter = new HistogramLogWriter(histogramLogFile);
+            histogramLogWriter.outputLogFormatVersion();
+            histogramLogWriter.outputComment("[" + name + " latency, in microseconds]");
+            histogramLogWriter.outputStartTime(startTimeMillis);
+            histogramLogWriter.setBaseTime(startTimeMillis);
+            histogramLogWriter.outputLegend();
+        }
+        else {
+            histogramLogWriter = null;
+        }
+    }
+
+    public void start() {
+        reportScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "latency-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reportScheduler.scheduleAtFixedRate(this::reportInterval, intervalSec, intervalSec, TimeUnit.SECONDS);
+    }
+
+    private synchronized void reportInterval() {
+        if (closed) {
+            return;
+        }
+        Histogram intervalHistogram = latencyRecorder.getIntervalHistogram();
+        if (histogramLogWriter != null) {
+            histogramLogWriter.outputIntervalHistogram(intervalHistogram);
+        }
+        if (intervalHistogram.getTotalCount() > 0) {
+            logger.info("{} latency (last {}s): {}", name, intervalSec, LatencyRecorder.getSummaryStr(intervalHistogram));
+        }
+    }
+
+    // Reports the last (partial) interval and closes the histogram log file
+    @Override
+    public synchronized void close() {
+        if (reportScheduler != null) {
+            reportScheduler.shutdownNow();
+        }
+        reportInterval();
+        closed = true;
+        if (histogramLogWriter != null) {
+            histogramLogWriter.close();
+        }
+    }
+}
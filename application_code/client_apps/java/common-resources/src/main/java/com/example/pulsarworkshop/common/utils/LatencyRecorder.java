@@ -0,0 +1,70 @@
+package com.example.pulsarworkshop.common.utils;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread safe latency recorder (in microseconds) backed by an HdrHistogram {@link Recorder}.
+ *
+ * Latency should be recorded from the intended start time of an operation (see
+ * {@link TokenBucketRateLimiter#acquire()}), not from its actual start time.
+ *
+ * Reading the accumulated histogram doesn't take anything away from the next interval
+ * histogram, so the two can be read independently (e.g. by the metrics reporter and by
+ * a {@link LatencyIntervalReporter}).
+ */
+public class LatencyRecorder {
+
+    private final static int NUM_SIGNIFICANT_DIGITS = 3;
+
+    private final Recorder recorder = new Recorder(NUM_SIGNIFICANT_DIGITS);
+    private final Histogram accumulatedHistogram = new Histogram(NUM_SIGNIFICANT_DIGITS);
+    // Sampled from the recorder, but not yet returned by "getIntervalHistogram()"
+    private Histogram pendingIntervalHistogram = new Histogram(NUM_SIGNIFICANT_DIGITS);
+    private long intervalStartMillis = System.currentTimeMillis();
+
+    // Records the latency from "startNanos" (System.nanoTime() based) till now
+    public void recordSince(long startNanos) {
+        recordMicros(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public void recordMicros(long latencyMicros) {
+        recorder.recordValue(Math.max(latencyMicros, 0));
+    }
+
+    private void sample() {
+        Histogram sampledHistogram = recorder.getIntervalHistogram();
+        accumulatedHistogram.add(sampledHistogram);
+        pendingIntervalHistogram.add(sampledHistogram);
+    }
+
+    // Returns the latencies recorded since the last call of this method
+    public synchronized Histogram getIntervalHistogram() {
+        sample();
+        Histogram intervalHistogram = pendingIntervalHistogram;
+        pendingIntervalHistogram = new Histogram(NUM_SIGNIFICANT_DIGITS);
+
+        long intervalEndMillis = System.currentTimeMillis();
+        intervalHistogram.setStartTimeStamp(intervalStartMillis);
+        intervalHistogram.setEndTimeStamp(intervalEndMillis);
+        intervalStartMillis = intervalEndMillis;
+        return intervalHistogram;
+    }
+
+    // Returns all the latencies recorded so far
+    public synchronized Histogram getAccumulatedHistogram() {
+        sample();
+        return accumulatedHistogram.copy();
+    }
+
+    public static String getSummaryStr(Histogram histogram) {
+        return String.format("count=%d, p50=%dus, p99=%dus, p99.9=%dus, max=%dus",
+                histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9),
+                histogram.getMaxValue());
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.pulsarworkshop.common.utils;
+
+import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+/**
+ * Workload file scanner that memory-maps the file and finds the line boundaries directly
+ * in the mapped bytes. Lines are handed out as a reusable {@link CsvLineView} so no String
+ * is created per line unless {@link #getNextLine()} is used.
+ *
+ * Files larger than the mapping window are mapped window by window. A window always starts
+ * at a line boundary, so a single line can't be longer than the window size.
+ *
+ * A scanner can also be limited to a byte range of the file (e.g. one range per thread).
+ * The range boundaries must be at line starts; see {@link #getLineAlignedRanges(File, long, int)}.
+ */
+public class MappedCsvFileScanner implements CsvFileScanner {
+
+    // 1 GB per mapping window (a single mapping can't exceed 2 GB)
+    private final static long DEFAULT_MAP_WINDOW_SIZE = 1L << 30;
+
+    private final FileChannel fileChannel;
+    private final long endPos;
+    private final long mapWindowSize;
+
+    private MappedByteBuffer mappedBuffer;
+    // File position of index 0 of the current mapping window
+    private long windowStartPos;
+    // File position of the start of the next line
+    private long nextLinePos;
+
+    private final CsvLineView lineView = new CsvLineView();
+
+    public MappedCsvFileScanner(File file) throws IOException {
+        this(file, DEFAULT_MAP_WINDOW_SIZE);
+    }
+
+    public MappedCsvFileScanner(File file, long mapWindowSize) throws IOException {
+        this(file, 0, Long.MAX_VALUE, mapWindowSize);
+    }
+
+    // Only scans the lines in the byte range [startPos, endPos) of the file
+    public MappedCsvFileScanner(File file, long startPos, long endPos) throws IOException {
+        this(file, startPos, endPos, DEFAULT_MAP_WINDOW_SIZE);
+    }
+
+    public MappedCsvFileScanner(File file, long startPos, long endPos, long mapWindowSize) throws IOException {
+        this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.endPos = Math.min(endPos, fileChannel.size());
+        this.mapWindowSize = mapWindowSize;
+        this.nextLinePos = startPos;
+
+        if (this.endPos > startPos) {
+            mapWindow(startPos);
+        }
+    }
+
+    /**
+     * Splits the byte range [startPos, file size) into (at most) "numRanges" ranges whose
+     * boundaries are all at line starts. Returns the "numRanges + 1" boundary positions;
+     * range i is [boundaries[i], boundaries[i+1]). Ranges can be empty for small files.
+     */
+    public static long[] getLineAlignedRanges(File file, long startPos, int numRanges) throws IOException {
+        long[] boundaries = new long[numRanges + 1];
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long rangeSize = Math.max(fileSize - startPos, 0) / numRanges;
+            ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+            boundaries[0] = startPos;
+            boundaries[numRanges] = Math.max(fileSize, startPos);
+
+            for (int i = 1; i < numRanges; i++) {
+                // Move the split point to the start of the next line
+                long splitPos = Math.max(startPos + rangeSize * i, boundaries[i - 1]);
+                long scanPos = (splitPos > 0) ? splitPos - 1 : 0;
+                long alignedPos = fileSize;
+
+                if (splitPos > 0) {
+                    boolean found = false;
+                    while (!found && (scanPos < fileSize)) {
+                        readBuffer.clear();
+                        int bytesRead = channel.read(readBuffer, scanPos);
+                        if (bytesRead <= 0) {
+                            break;
+                        }
+                        for (int j = 0; j < bytesRead; j++) {
+                            if (readBuffer.get(j) == '\n') {
+                                alignedPos = scanPos + j + 1;
+                                found = true;
+                                break;
+                            }
+                        }
+                        scanPos += bytesRead;
+                    }
+                } else {
+                    alignedPos = 0;
+                }
+
+                boundaries[i] = Math.min(alignedPos, boundaries[numRanges]);
+            }
+        }
+
+        return boundaries;
+    }
+
+    private void mapWindow(long startPos) throws IOException {
+        long size = Math.min(mapWindowSize, endPos - startPos);
+        mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, startPos, size);
+        windowStartPos = startPos;
+    }
+
+    private int indexOfNewLine(int fromIndex, int toIndex) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            if (mappedBuffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean hasNextLine() {
+        return nextLinePos < endPos;
+    }
+
+    /**
+     * Returns a view of the next line. The returned view is reused and overwritten by the next call.
+     */
+    @Override
+    public CsvLineView nextLineView() throws IOException {
+        if (!hasNextLine()) {
+            throw new NoSuchElementException("No more lines in the workload file");
+        }
+
+        int lineStart = (int) (nextLinePos - windowStartPos);
+        int windowLimit = mappedBuffer.limit();
+        int newLineIdx = indexOfNewLine(lineStart, windowLimit);
+
+        // The line continues past the current window, remap starting from the line start
+        if ((newLineIdx < 0) && (windowStartPos + windowLimit < endPos)) {
+            mapWindow(nextLinePos);
+            lineStart = 0;
+            windowLimit = mappedBuffer.limit();
+            newLineIdx = indexOfNewLine(0, windowLimit);
+
+            if ((newLineIdx < 0) && (windowStartPos + windowLimit < endPos)) {
+                throw new WorkshopRuntimException(
+                        "A line in the workload file exceeds the max. mapping window size (" + mapWindowSize + " bytes)!");
+            }
+        }
+
+        int lineEnd = (newLineIdx < 0) ? windowLimit : newLineIdx;
+        nextLinePos = windowStartPos + ((newLineIdx < 0) ? windowLimit : newLineIdx + 1);
+
+        // Strip the '\r' of a "\r\n" line terminator
+        if ((lineEnd > lineStart) && (mappedBuffer.get(lineEnd - 1) == '\r')) {
+            lineEnd--;
+        }
+
+        lineView.set(mappedBuffer, lineStart, lineEnd - lineStart);
+        return lineView;
+    }
+
+    // File position (in bytes) of the next line to be read
+    @Override
+    public long getPosition() {
+        return nextLinePos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The mapping itself is released when the buffer is garbage collected
+        mappedBuffer = null;
+        fileChannel.close();
+    }
+}
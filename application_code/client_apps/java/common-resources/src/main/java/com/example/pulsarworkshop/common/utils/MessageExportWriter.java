@@ -0,0 +1,208 @@
+package com.example.pulsarworkshop.common.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.pulsar.client.api.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exports Pulsar messages to a local file, in one of these formats:
+ * - NDJSON, one JSON object per line:
+ *   {"topic":..,"messageId":..,"publishTime":..,"eventTime":..,"key":..,"properties":{..},"value":..}
+ *   "value" is the UTF-8 payload; a payload that isn't valid UTF-8 is written as "valueBase64"
+ * - binary, length-prefixed records (big endian):
+ *   int record length (excluding itself), long publish time, long event time (0: none),
+ *   then each as an int length and the bytes: the topic, the message id ("MessageId.toByteArray()"),
+ *   the key (-1 length: no key), then an int number of properties with the name and value of
+ *   each property, and finally the payload
+ *
+ * Several threads can export to the same file: each one encodes its messages into its own
+ * {@link ExportBuffer}, which is written to the file channel as a whole when full. The records
+ * of different threads are interleaved, but never split.
+ */
+public class MessageExportWriter implements Closeable {
+
+    private final static int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    public enum EXPORT_FORMAT {
+        Ndjson("ndjson"),
+        Binary("binary");
+
+        public final String label;
+
+        EXPORT_FORMAT(String label) {
+            this.label = label;
+        }
+    }
+
+    private final static JsonFactory jsonFactory = new JsonFactory();
+
+    private final FileChannel fileChannel;
+    private final EXPORT_FORMAT exportFormat;
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public MessageExportWriter(File exportFile, EXPORT_FORMAT exportFormat) throws IOException {
+        this.fileChannel = FileChannel.open(exportFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.exportFormat = exportFormat;
+    }
+
+    // One buffer per exporting thread
+    public ExportBuffer newBuffer() throws IOException {
+        return new ExportBuffer(DEFAULT_BUFFER_SIZE);
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    // Writes the buffer content (from position 0) as a whole
+    private synchronized void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            bytesWritten.addAndGet(fileChannel.write(buffer));
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        fileChannel.close();
+    }
+
+    // Gives access to the internal array, to copy or patch the record without an extra array
+    private static class RecordOutputStream extends ByteArrayOutputStream {
+        void copyTo(ByteBuffer buffer) {
+            buffer.put(buf, 0, count);
+        }
+
+        void setInt(int pos, int value) {
+            buf[pos] = (byte) (value >>> 24);
+            buf[pos + 1] = (byte) (value >>> 16);
+            buf[pos + 2] = (byte) (value >>> 8);
+            buf[pos + 3] = (byte) value;
+        }
+    }
+
+    /**
+     * Not thread safe; the messages written are in the file once the buffer is full or flushed.
+     */
+    public class ExportBuffer {
+        private final ByteBuffer buffer;
+        private final RecordOutputStream recordStream = new RecordOutputStream();
+        private final DataOutputStream dataStream = new DataOutputStream(recordStream);
+        private final JsonGenerator jsonGenerator;
+        private final CharsetDecoder utf8Decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        private ExportBuffer(int bufferSize) throws IOException {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            jsonGenerator = jsonFactory.createGenerator(recordStream);
+            // One JSON object per line
+            jsonGenerator.setRootValueSeparator(null);
+        }
+
+        public void write(Message<?> message) throws IOException {
+            recordStream.reset();
+            if (exportFormat == EXPORT_FORMAT.Binary) {
+                encodeBinary(message);
+            }
+            else {
+                encodeNdjson(message);
+            }
+
+            if (recordStream.size() > buffer.remaining()) {
+                flush();
+            }
+            // A record larger than the buffer is written on its own
+            if (recordStream.size() > buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(recordStream.toByteArray()));
+            }
+            else {
+                recordStream.copyTo(buffer);
+            }
+        }
+
+        public void flush() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void encodeNdjson(Message<?> message) throws IOException {
+            jsonGenerator.writeStartObject();
+            jsonGenerator.writeStringField("topic", message.getTopicName());
+            jsonGenerator.writeStringField("messageId", message.getMessageId().toString());
+            jsonGenerator.writeNumberField("publishTime", message.getPublishTime());
+            if (message.getEventTime() > 0) {
+                jsonGenerator.writeNumberField("eventTime", message.getEventTime());
+            }
+            if (message.hasKey()) {
+                jsonGenerator.writeStringField("key", message.getKey());
+            }
+            Map<String, String> properties = message.getProperties();
+            if (!properties.isEmpty()) {
+                jsonGenerator.writeObjectFieldStart("properties");
+                for (Map.Entry<String, String> property : properties.entrySet()) {
+                    jsonGenerator.writeStringField(property.getKey(), property.getValue());
+                }
+                jsonGenerator.writeEndObject();
+            }
+            byte[] payload = message.getData();
+            try {
+                jsonGenerator.writeStringField("value", utf8Decoder.decode(ByteBuffer.wrap(payload)).toString());
+            }
+            catch (CharacterCodingException cce) {
+                jsonGenerator.writeStringField("valueBase64", Base64.getEncoder().encodeToString(payload));
+            }
+            jsonGenerator.writeEndObject();
+            jsonGenerator.flush();
+            recordStream.write('\n');
+        }
+
+        private void encodeBinary(Message<?> message) throws IOException {
+            // Record length placeholder, set once the record is encoded
+            dataStream.writeInt(0);
+            dataStream.writeLong(message.getPublishTime());
+            dataStream.writeLong(message.getEventTime());
+            writeBytes(message.getTopicName().getBytes(StandardCharsets.UTF_8));
+            writeBytes(message.getMessageId().toByteArray());
+            writeBytes(message.hasKey() ? message.getKeyBytes() : null);
+            Map<String, String> properties = message.getProperties();
+            dataStream.writeInt(properties.size());
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                writeBytes(property.getKey().getBytes(StandardCharsets.UTF_8));
+                writeBytes(property.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+            writeBytes(message.getData());
+            dataStream.flush();
+
+            recordStream.setInt(0, recordStream.size() - Integer.BYTES);
+        }
+
+        // -1 length for null
+        private void writeBytes(byte[] bytes) throws IOException {
+            if (bytes == null) {
+                dataStream.writeInt(-1);
+            }
+            else {
+                dataStream.writeInt(bytes.length);
+                dataStream.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.example.pulsarworkshop.common.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hash map of String keys to byte[] values, with both the keys and the values stored off-heap
+ * (direct buffers), e.g. to materialize a large compacted topic without growing the Java heap:
+ * - the records (key and value) are appended to data segments. An update or a removal leaves
+ *   the previous record behind as garbage; once the garbage exceeds the live data, the live
+ *   records are copied to new segments.
+ * - the index is an open addressing (linear probing) table, off-heap too: per slot, the record
+ *   address (0: empty, -1: removed) and the key hash
+ *
+ * Thread safe: the updates are serialized, the lookups run concurrently.
+ */
+public class OffHeapKeyValueStore {
+
+    private final static int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private final static int INITIAL_INDEX_CAPACITY = 1024;
+    private final static double MAX_LOAD_FACTOR = 0.7;
+
+    // Slot: long record address, int key hash, int (unused)
+    private final static int SLOT_SIZE = 16;
+    private final static long EMPTY_SLOT = 0;
+    private final static long REMOVED_SLOT = -1;
+    // Record: int key length, int value length, key bytes, value bytes
+    private final static int RECORD_HEADER_SIZE = 8;
+
+    private final int segmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // A record address is (segment index + 1) << 32 | offset in the segment
+    private List<ByteBuffer> segments = new ArrayList<>();
+    private int segmentWriteOffset = 0;
+
+    // The capacity (number of slots) is a power of 2
+    private ByteBuffer index;
+    private int indexCapacity;
+    private int size = 0;
+    private int removedSlots = 0;
+
+    // Record bytes (headers included)
+    private long liveBytes = 0;
+    private long garbageBytes = 0;
+
+    public OffHeapKeyValueStore() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    public OffHeapKeyValueStore(int segmentSize) {
+        this.segmentSize = segmentSize;
+        this.indexCapacity = INITIAL_INDEX_CAPACITY;
+        this.index = ByteBuffer.allocateDirect(indexCapacity * SLOT_SIZE);
+    }
+
+    public void put(String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+
+        lock.writeLock().lock();
+        try {
+            long address = appendRecord(keyBytes, value);
+            liveBytes += getRecordSize(address);
+
+            int slot = findSlot(keyBytes, hash);
+            long oldAddress = getSlotAddress(slot);
+            if (oldAddress > 0) {
+                long oldRecordSize = getRecordSize(oldAddress);
+                liveBytes -= oldRecordSize;
+                garbageBytes += oldRecordSize;
+            }
+            else {
+                // Reuse the first removed slot of the probe sequence, if any
+                int freeSlot = findFreeSlot(hash);
+                if (getSlotAddress(freeSlot) == REMOVED_SLOT) {
+                    removedSlots--;
+                }
+                slot = freeSlot;
+                size++;
+            }
+            setSlot(index, slot, address, hash);
+
+            if (size + removedSlots > indexCapacity * MAX_LOAD_FACTOR) {
+                resizeIndex();
+            }
+            if ((garbageBytes > liveBytes) && (garbageBytes > segmentSize)) {
+                compactSegments();
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(keyBytes, hash(keyBytes));
+            long address = getSlotAddress(slot);
+            if (address > 0) {
+                long recordSize = getRecordSize(address);
+                liveBytes -= recordSize;
+                garbageBytes += recordSize;
+                setSlot(index, slot, REMOVED_SLOT, 0);
+                size--;
+                removedSlots++;
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Null when the key isn't in the store
+    public byte[] get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        lock.readLock().lock();
+        try {
+            long address = getSlotAddress(findSlot(keyBytes, hash(keyBytes)));
+            if (address <= 0) {
+                return null;
+            }
+            ByteBuffer segment = getSegment(address);
+            int offset = getOffset(address);
+            int keyLength = segment.getInt(offset);
+            byte[] value = new byte[segment.getInt(offset + 4)];
+            segment.get(offset + RECORD_HEADER_SIZE + keyLength, value);
+            return value;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Off-heap memory held by the store: the index and the data segments
+    public long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            long allocatedBytes = index.capacity();
+            for (ByteBuffer segment : segments) {
+                allocatedBytes += segment.capacity();
+            }
+            return allocatedBytes;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Bytes of the current records (the latest value of each key)
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            return liveBytes;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int hash(byte[] keyBytes) {
+        int h = Arrays.hashCode(keyBytes);
+        return (h ^ (h >>> 16)) * 0x9E3779B9;
+    }
+
+    // Slot of the key, or the empty slot ending its probe sequence
+    private int findSlot(byte[] keyBytes, int hash) {
+        int mask = indexCapacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long address = getSlotAddress(slot);
+            if (address == EMPTY_SLOT) {
+                return slot;
+            }
+            if ((address > 0) && (index.getInt(slot * SLOT_SIZE + 8) == hash) && keyEquals(address, keyBytes)) {
+                return slot;
+            }
+        }
+    }
+
+    // First empty or removed slot of the probe sequence
+    private int findFreeSlot(int hash) {
+        int mask = indexCapacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            if (getSlotAddress(slot) <= 0) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean keyEquals(long address, byte[] keyBytes) {
+        ByteBuffer segment = getSegment(address);
+        int offset = getOffset(address);
+        if (segment.getInt(offset) != keyBytes.length) {
+            return false;
+        }
+        int keyOffset = offset + RECORD_HEADER_SIZE;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (segment.get(keyOffset + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long getSlotAddress(int slot) {
+        return index.getLong(slot * SLOT_SIZE);
+    }
+
+    private static void setSlot(ByteBuffer index, int slot, long address, int hash) {
+        index.putLong(slot * SLOT_SIZE, address);
+        index.putInt(slot * SLOT_SIZE + 8, hash);
+    }
+
+    private ByteBuffer getSegment(long address) {
+        return segments.get((int) (address >>> 32) - 1);
+    }
+
+    private static int getOffset(long address) {
+        return (int) address;
+    }
+
+    private long getRecordSize(long address) {
+        ByteBuffer segment = getSegment(address);
+        int offset = getOffset(address);
+        return RECORD_HEADER_SIZE + (long) segment.getInt(offset) + segment.getInt(offset + 4);
+    }
+
+    // A record larger than the segment size gets a segment of its own
+    private long appendRecord(byte[] keyBytes, byte[] value) {
+        int recordSize = RECORD_HEADER_SIZE + keyBytes.length + value.length;
+        if (segments.isEmpty() || (segmentWriteOffset + recordSize > segments.get(segments.size() - 1).capacity())) {
+            segments.add(ByteBuffer.allocateDirect(Math.max(segmentSize, recordSize)));
+            segmentWriteOffset = 0;
+        }
+        ByteBuffer segment = segments.get(segments.size() - 1);
+        int offset = segmentWriteOffset;
+        segment.putInt(offset, keyBytes.length);
+        segment.putInt(offset + 4, value.length);
+        segment.put(offset + RECORD_HEADER_SIZE, keyBytes);
+        segment.put(offset + RECORD_HEADER_SIZE + keyBytes.length, value);
+        segmentWriteOffset += recordSize;
+
+        return ((long) segments.size() << 32) | offset;
+    }
+
+    // Doubles the capacity if needed, and drops the removed slots
+    private void resizeIndex() {
+        int newCapacity = (size > indexCapacity * MAX_LOAD_FACTOR / 2) ? indexCapacity * 2 : indexCapacity;
+        ByteBuffer newIndex = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+        int mask = newCapacity - 1;
+        for (int slot = 0; slot < indexCapacity; slot++) {
+            long address = getSlotAddress(slot);
+            if (address > 0) {
+                int hash = index.getInt(slot * SLOT_SIZE + 8);
+                int newSlot = hash & mask;
+                while (newIndex.getLong(newSlot * SLOT_SIZE) != EMPTY_SLOT) {
+                    newSlot = (newSlot + 1) & mask;
+                }
+                setSlot(newIndex, newSlot, address, hash);
+            }
+        }
+        index = newIndex;
+        indexCapacity = newCapacity;
+        removedSlots = 0;
+    }
+
+    // Copies the live records to new segments; the old ones are freed with their buffers
+    private void compactSegments() {
+        List<ByteBuffer> oldSegments = segments;
+        segments = new ArrayList<>();
+        segmentWriteOffset = 0;
+
+        for (int slot = 0; slot < indexCapacity; slot++) {
+            long address = getSlotAddress(slot);
+            if (address > 0) {
+                ByteBuffer oldSegment = oldSegments.get((int) (address >>> 32) - 1);
+                int offset = getOffset(address);
+                byte[] keyBytes = new byte[oldSegment.getInt(offset)];
+                byte[] value = new byte[oldSegment.getInt(offset + 4)];
+                oldSegment.get(offset + RECORD_HEADER_SIZE, keyBytes);
+                oldSegment.get(offset + RECORD_HEADER_SIZE + keyBytes.length, value);
+                index.putLong(slot * SLOT_SIZE, appendRecord(keyBytes, value));
+            }
+        }
+        garbageBytes = 0;
+    }
+}
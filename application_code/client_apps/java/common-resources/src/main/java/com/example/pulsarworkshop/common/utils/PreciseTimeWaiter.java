@@ -0,0 +1,29 @@
+package com.example.pulsarworkshop.common.utils;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Low-jitter waiting until a System.nanoTime() based deadline. The thread is parked for most
+ * of the wait and busy-spins for the last part, since parkNanos() (like Thread.sleep()) can't
+ * reliably wake up at a finer granularity than tens of microseconds.
+ */
+public class PreciseTimeWaiter {
+
+    // Below this remaining wait time, busy-spin instead of parking the thread
+    private final static long SPIN_THRESHOLD_NANOS = 100_000;
+
+    public static void waitUntil(long deadlineNanos) throws InterruptedException {
+        long remainingNanos;
+        while ((remainingNanos = deadlineNanos - System.nanoTime()) > 0) {
+            if (remainingNanos > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remainingNanos - SPIN_THRESHOLD_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+}
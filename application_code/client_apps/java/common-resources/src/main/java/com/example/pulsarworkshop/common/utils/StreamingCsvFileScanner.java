@@ -0,0 +1,253 @@
+package com.example.pulsarworkshop.common.utils;
+
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Workload file scanner that reads the file as a stream, decompressing ".gz", ".zst"/".zstd"
+ * and ".lz4" (LZ4 frame format) files on the fly.
+ *
+ * A read-ahead thread reads and decompresses the file into large blocks ahead of the caller,
+ * so decompression overlaps with the parsing and publishing done by the caller. The blocks
+ * are recycled; a line is handed out as a view into its block, or into a carry-over buffer
+ * when it spans two blocks.
+ */
+public class StreamingCsvFileScanner implements CsvFileScanner {
+
+    private final static int BLOCK_SIZE = 4 * 1024 * 1024;
+    private final static int READ_AHEAD_BLOCKS = 4;
+    private final static int INPUT_BUFFER_SIZE = 1024 * 1024;
+
+    private static class Block {
+        private final byte[] data;
+        private final ByteBuffer buffer;
+        private int length;
+
+        Block(int capacity) {
+            this.data = new byte[capacity];
+            this.buffer = ByteBuffer.wrap(data);
+        }
+    }
+    private final static Block EOF_BLOCK = new Block(0);
+
+    private final InputStream inputStream;
+    private final Thread readAheadThread;
+    private final BlockingQueue<Block> filledBlocks = new ArrayBlockingQueue<>(READ_AHEAD_BLOCKS + 2);
+    private final BlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<>(READ_AHEAD_BLOCKS + 2);
+    private volatile Throwable readAheadError;
+
+    // Block being scanned by the caller
+    private Block curBlock;
+    private int curPos;
+    private boolean endOfStream = false;
+    private long position = 0;
+
+    // Holds a line that spans two (or more) blocks
+    private byte[] carryBuffer = new byte[64 * 1024];
+    private ByteBuffer carryByteBuffer = ByteBuffer.wrap(carryBuffer);
+    private int carryLength;
+
+    private final CsvLineView lineView = new CsvLineView();
+
+    public StreamingCsvFileScanner(File file) throws IOException {
+        this.inputStream = openInputStream(file);
+
+        // One block held by the caller and one being filled, on top of the read-ahead blocks
+        for (int i = 0; i < READ_AHEAD_BLOCKS + 2; i++) {
+            freeBlocks.add(new Block(BLOCK_SIZE));
+        }
+
+        readAheadThread = new Thread(this::readAhead, "csv-read-ahead-" + file.getName());
+        readAheadThread.setDaemon(true);
+        readAheadThread.start();
+    }
+
+    private static InputStream openInputStream(File file) throws IOException {
+        String fileName = StringUtils.lowerCase(file.getName());
+        InputStream fileInputStream = Files.newInputStream(file.toPath());
+
+        if (StringUtils.endsWith(fileName, ".gz")) {
+            return new GZIPInputStream(fileInputStream, INPUT_BUFFER_SIZE);
+        }
+
+        InputStream bufferedInputStream = new BufferedInputStream(fileInputStream, INPUT_BUFFER_SIZE);
+        if (StringUtils.endsWithAny(fileName, ".zst", ".zstd")) {
+            return new ZstdCompressorInputStream(bufferedInputStream);
+        } else if (StringUtils.endsWith(fileName, ".lz4")) {
+            return new FramedLZ4CompressorInputStream(bufferedInputStream, true);
+        }
+        return bufferedInputStream;
+    }
+
+    private void readAhead() {
+        try {
+            while (true) {
+                Block block = freeBlocks.take();
+
+                int length = 0;
+                int bytesRead = 0;
+                while ((length < block.data.length) &&
+                        ((bytesRead = inputStream.read(block.data, length, block.data.length - length)) != -1)) {
+                    length += bytesRead;
+                }
+
+                if (length > 0) {
+                    block.length = length;
+                    filledBlocks.put(block);
+                }
+                if (bytesRead == -1) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ie) {
+            // The scanner is closed; keep the flag so that posting the end of stream doesn't block
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            // Any failure, e.g. a corrupt compressed frame or a missing native library
+            readAheadError = t;
+        } finally {
+            // Whatever ended the read-ahead, the caller must not wait for more blocks
+            try {
+                filledBlocks.put(EOF_BLOCK);
+            } catch (InterruptedException ie) {
+                // The scanner is closed
+            }
+        }
+    }
+
+    // Makes sure the current block has unread bytes; returns false at the end of the stream
+    private boolean ensureBlock() throws IOException {
+        while (!endOfStream && ((curBlock == null) || (curPos >= curBlock.length))) {
+            if (curBlock != null) {
+                freeBlocks.offer(curBlock);
+                curBlock = null;
+            }
+
+            Block block;
+            try {
+                block = filledBlocks.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading the workload file");
+            }
+
+            if (block == EOF_BLOCK) {
+                endOfStream = true;
+                if (readAheadError != null) {
+                    throw new IOException("Failed to read the workload file: " + readAheadError, readAheadError);
+                }
+            } else {
+                curBlock = block;
+                curPos = 0;
+            }
+        }
+
+        return (curBlock != null) && (curPos < curBlock.length);
+    }
+
+    private int indexOfNewLine() {
+        byte[] data = curBlock.data;
+        for (int i = curPos; i < curBlock.length; i++) {
+            if (data[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void appendToCarry(int len) {
+        if (carryLength + len > carryBuffer.length) {
+            byte[] newCarryBuffer = new byte[Math.max(carryBuffer.length * 2, carryLength + len)];
+            System.arraycopy(carryBuffer, 0, newCarryBuffer, 0, carryLength);
+            carryBuffer = newCarryBuffer;
+            carryByteBuffer = ByteBuffer.wrap(carryBuffer);
+        }
+        System.arraycopy(curBlock.data, curPos, carryBuffer, carryLength, len);
+        carryLength += len;
+    }
+
+    @Override
+    public boolean hasNextLine() throws IOException {
+        return ensureBlock();
+    }
+
+    @Override
+    public CsvLineView nextLineView() throws IOException {
+        if (!ensureBlock()) {
+            throw new NoSuchElementException("No more lines in the workload file");
+        }
+
+        // The whole line is in the current block
+        int newLineIdx = indexOfNewLine();
+        if (newLineIdx >= 0) {
+            int lineStart = curPos;
+            position += (newLineIdx + 1 - curPos);
+            curPos = newLineIdx + 1;
+
+            int lineEnd = newLineIdx;
+            if ((lineEnd > lineStart) && (curBlock.data[lineEnd - 1] == '\r')) {
+                lineEnd--;
+            }
+            lineView.set(curBlock.buffer, lineStart, lineEnd - lineStart);
+            return lineView;
+        }
+
+        // The line spans more than one block
+        carryLength = 0;
+        do {
+            newLineIdx = indexOfNewLine();
+            int len = ((newLineIdx >= 0) ? newLineIdx : curBlock.length) - curPos;
+            appendToCarry(len);
+
+            position += (newLineIdx >= 0) ? (len + 1) : len;
+            curPos += (newLineIdx >= 0) ? (len + 1) : len;
+        } while ((newLineIdx < 0) && ensureBlock());
+
+        int lineLength = carryLength;
+        if ((lineLength > 0) && (carryBuffer[lineLength - 1] == '\r')) {
+            lineLength--;
+        }
+        lineView.set(carryByteBuffer, 0, lineLength);
+        return lineView;
+    }
+
+    /**
+     * Skips the lines before the (line aligned) position. A stream can't seek, so the skipped
+     * part is still read and decompressed.
+     */
+    public void skipTo(long targetPos) throws IOException {
+        while ((position < targetPos) && hasNextLine()) {
+            nextLineView();
+        }
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The read-ahead thread may be inside read(): wait for it before closing the stream
+        readAheadThread.interrupt();
+        try {
+            readAheadThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        inputStream.close();
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.pulsarworkshop.common.utils;
+
+import com.example.pulsarworkshop.common.exception.InvalidParamException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Pre-generated synthetic workload: a ring of message payloads and (optionally) message keys.
+ * Everything is generated up front, so getting the payload and the key of a message doesn't
+ * allocate anything. The payloads must not be modified by the caller.
+ *
+ * Payload size distribution specs:
+ * - "fixed:<size>"
+ * - "uniform:<min_size>-<max_size>"
+ * - "histogram:<size>=<weight>,<size>=<weight>,..."  (e.g. "histogram:100=0.7,1000=0.2,10000=0.1")
+ *
+ * Message key distribution specs:
+ * - "none"  (no message key)
+ * - "sequential:<num_keys>"
+ * - "uniform:<num_keys>"
+ * - "zipf:<num_keys>[:<exponent>]"  (default exponent: 1.0)
+ */
+public class SyntheticWorkload {
+
+    // Upper limit of the total size of the pre-generated payloads
+    private final static long MAX_PAYLOAD_RING_BYTES = 256L * 1024 * 1024;
+
+    private final static byte[] PAYLOAD_CHARS =
+            "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".getBytes();
+
+    private final byte[][] payloadRing;
+
+    // Null when there is no message key
+    private final String[] keys;
+    private final boolean sequentialKeys;
+    // Sampled key indexes (uniform and zipf key distribution only)
+    private final int[] keyIdxRing;
+
+    public SyntheticWorkload(String payloadSizeDistSpec, String keyDistSpec, int ringSize, long seed) {
+        Random random = new Random(seed);
+
+        //////////////////
+        // Payloads
+        SizeDistribution sizeDistribution = new SizeDistribution(payloadSizeDistSpec);
+        long maxRingSize = Math.max(1, MAX_PAYLOAD_RING_BYTES / Math.max(1, sizeDistribution.getMeanSize()));
+        payloadRing = new byte[(int) Math.min(ringSize, maxRingSize)][];
+        for (int i = 0; i < payloadRing.length; i++) {
+            byte[] payload = new byte[sizeDistribution.nextSize(random)];
+            for (int j = 0; j < payload.length; j++) {
+                payload[j] = PAYLOAD_CHARS[random.nextInt(PAYLOAD_CHARS.length)];
+            }
+            payloadRing[i] = payload;
+        }
+
+        //////////////////
+        // Message keys
+        String[] keySpecItems = StringUtils.split(StringUtils.defaultIfBlank(keyDistSpec, "none"), ':');
+        String keyDistType = StringUtils.lowerCase(keySpecItems[0]);
+        if (StringUtils.equals(keyDistType, "none")) {
+            keys = null;
+            sequentialKeys = false;
+            keyIdxRing = null;
+            return;
+        }
+
+        if ((keySpecItems.length < 2) || !NumberUtils.isDigits(keySpecItems[1])
+                || (NumberUtils.toInt(keySpecItems[1]) <= 0)) {
+            throw new InvalidParamException("keyDist", "invalid key distribution spec \"" + keyDistSpec + "\"");
+        }
+        int numKeys = NumberUtils.toInt(keySpecItems[1]);
+        keys = new String[numKeys];
+        for (int i = 0; i < numKeys; i++) {
+            keys[i] = "key-" + i;
+        }
+
+        switch (keyDistType) {
+            case "sequential":
+                sequentialKeys = true;
+                keyIdxRing = null;
+                break;
+            case "uniform":
+                sequentialKeys = false;
+                keyIdxRing = new int[ringSize];
+                for (int i = 0; i < ringSize; i++) {
+                    keyIdxRing[i] = random.nextInt(numKeys);
+                }
+                break;
+            case "zipf":
+                double exponent = (keySpecItems.length > 2) ? NumberUtils.toDouble(keySpecItems[2], -1) : 1.0;
+                if (exponent <= 0) {
+                    throw new InvalidParamException("keyDist", "invalid zipf exponent in \"" + keyDistSpec + "\"");
+                }
+                sequentialKeys = false;
+                keyIdxRing = sampleZipf(numKeys, exponent, ringSize, random);
+                break;
+            default:
+                throw new InvalidParamException("keyDist", "unknown key distribution type \"" + keyDistType + "\"");
+        }
+    }
+
+    // Key "k" (0 based rank) is drawn with a probability proportional to 1 / (k+1)^exponent
+    private static int[] sampleZipf(int numKeys, double exponent, int numSamples, Random random) {
+        double[] cdf = new double[numKeys];
+        double sum = 0;
+        for (int k = 0; k < numKeys; k++) {
+            sum += 1.0 / Math.pow(k + 1, exponent);
+            cdf[k] = sum;
+        }
+
+        int[] samples = new int[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            int idx = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            samples[i] = Math.min((idx >= 0) ? idx : -idx - 1, numKeys - 1);
+        }
+        return samples;
+    }
+
+    public int getPayloadRingSize() { return payloadRing.length; }
+
+    public byte[] getPayload(long msgIdx) {
+        return payloadRing[(int) (msgIdx % payloadRing.length)];
+    }
+
+    // Returns null when there is no message key
+    public String getKey(long msgIdx) {
+        if (keys == null) {
+            return null;
+        }
+        if (sequentialKeys) {
+            return keys[(int) (msgIdx % keys.length)];
+        }
+        return keys[keyIdxRing[(int) (msgIdx % keyIdxRing.length)]];
+    }
+
+    /**
+     * Payload size distribution, parsed from the spec string
+     */
+    static class SizeDistribution {
+        private final int[] sizes;
+        // Cumulative weights; only used for the "histogram" type
+        private final double[] cumWeights;
+        private final boolean uniform;
+
+        SizeDistribution(String spec) {
+            String[] specItems = StringUtils.split(StringUtils.defaultString(spec), ":", 2);
+            String type = (specItems.length > 0) ? StringUtils.lowerCase(specItems[0]) : "";
+            String params = (specItems.length > 1) ? specItems[1] : "";
+
+            try {
+                switch (type) {
+                    case "fixed":
+                        sizes = new int[]{parseSize(params)};
+                        cumWeights = null;
+                        uniform = false;
+                        break;
+                    case "uniform":
+                        String[] range = StringUtils.split(params, '-');
+                        sizes = new int[]{parseSize(range[0]), parseSize(range[1])};
+                        if (sizes[0] > sizes[1]) {
+                            throw new IllegalArgumentException();
+                        }
+                        cumWeights = null;
+                        uniform = true;
+                        break;
+                    case "histogram":
+                        String[] buckets = StringUtils.split(params, ',');
+                        sizes = new int[buckets.length];
+                        cumWeights = new double[buckets.length];
+                        double totalWeight = 0;
+                        for (int i = 0; i < buckets.length; i++) {
+                            String[] bucket = StringUtils.split(buckets[i], '=');
+                            sizes[i] = parseSize(bucket[0]);
+                            double weight = Double.parseDouble(bucket[1]);
+                            if (weight < 0) {
+                                throw new IllegalArgumentException();
+                            }
+                            totalWeight += weight;
+                            cumWeights[i] = totalWeight;
+                        }
+                        if (totalWeight <= 0) {
+                            throw new IllegalArgumentException();
+                        }
+                        uniform = false;
+                        break;
+                    default:
+                        throw new IllegalArgumentException();
+                }
+            } catch (RuntimeException re) {
+                throw new InvalidParamException("payloadSizeDist",
+                        "invalid payload size distribution spec \"" + spec + "\"");
+            }
+        }
+
+        private static int parseSize(String sizeStr) {
+            int size = Integer.parseInt(StringUtils.trim(sizeStr));
+            if (size < 0) {
+                throw new IllegalArgumentException();
+            }
+            return size;
+        }
+
+        int nextSize(Random random) {
+            if (uniform) {
+                return sizes[0] + random.nextInt(sizes[1] - sizes[0] + 1);
+            }
+            if (cumWeights == null) {
+                return sizes[0];
+            }
+            double point = random.nextDouble() * cumWeights[cumWeights.length - 1];
+            for (int i = 0; i < cumWeights.length; i++) {
+                if (point < cumWeights[i]) {
+                    return sizes[i];
+                }
+            }
+            return sizes[sizes.length - 1];
+        }
+
+        long getMeanSize() {
+            if (uniform) {
+                return (sizes[0] + (long) sizes[1]) / 2;
+            }
+            if (cumWeights == null) {
+                return sizes[0];
+            }
+            double mean = 0;
+            double prevCumWeight = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                mean += sizes[i] * (cumWeights[i] - prevCumWeight);
+                prevCumWeight = cumWeights[i];
+            }
+            return (long) (mean / cumWeights[cumWeights.length - 1]);
+        }
+    }
+}
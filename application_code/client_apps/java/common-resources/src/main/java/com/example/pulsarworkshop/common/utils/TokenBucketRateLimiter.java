@@ -0,0 +1,38 @@
+package com.example.pulsarworkshop.common.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter for a fixed offered load (messages per second).
+ *
+ * Token "k" becomes available at "start + k / rate". The bucket never discards tokens:
+ * when the caller falls behind (e.g. during a broker stall), the tokens owed are handed out
+ * immediately until the schedule is caught up. {@link #acquire()} returns the intended send
+ * time of the token, so latency measured from it includes the time spent behind schedule
+ * (coordinated omission correction, as done by wrk2).
+ *
+ * Thread safe; multiple sending threads can share one limiter.
+ */
+public class TokenBucketRateLimiter {
+
+    private final double nanosPerToken;
+    private final long startNanos;
+    private final AtomicLong tokensIssued = new AtomicLong();
+
+    public TokenBucketRateLimiter(double tokensPerSecond) {
+        assert (tokensPerSecond > 0);
+        this.nanosPerToken = 1_000_000_000.0 / tokensPerSecond;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Waits until the next token is available and returns its intended time (System.nanoTime() based).
+     */
+    public long acquire() throws InterruptedException {
+        long tokenIdx = tokensIssued.getAndIncrement();
+        long intendedNanos = startNanos + (long) (tokenIdx * nanosPerToken);
+
+        PreciseTimeWaiter.waitUntil(intendedNanos);
+        return intendedNanos;
+    }
+}
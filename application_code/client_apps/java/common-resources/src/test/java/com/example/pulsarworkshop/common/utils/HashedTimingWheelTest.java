@@ -0,0 +1,125 @@
+package com.example.pulsarworkshop.common.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HashedTimingWheelTest {
+
+    private final static long TICK_MS = 10;
+    // 8 buckets: 80 ms per wheel turn
+    private final static int WHEEL_SIZE = 8;
+
+    @Test
+    public void itemsNeverExpireEarly() throws InterruptedException {
+        long[] delaysMs = {0, 1, 5, 9, 10, 11, 15, 25, 79, 80, 81, 150, 333};
+        Map<Integer, Long> scheduledNanos = new ConcurrentHashMap<>();
+        Map<Integer, Long> expiredNanos = new ConcurrentHashMap<>();
+        CountDownLatch allExpired = new CountDownLatch(delaysMs.length);
+
+        try (HashedTimingWheel<Integer> wheel = new HashedTimingWheel<>(TICK_MS, TimeUnit.MILLISECONDS, WHEEL_SIZE,
+                item -> {
+                    expiredNanos.put(item, System.nanoTime());
+                    allExpired.countDown();
+                })) {
+            for (int i = 0; i < delaysMs.length; i++) {
+                scheduledNanos.put(i, System.nanoTime());
+                wheel.schedule(i, delaysMs[i], TimeUnit.MILLISECONDS);
+                // Spread the scheduling times over the ticks
+                Thread.sleep(3);
+            }
+
+            assertTrue(allExpired.await(5, TimeUnit.SECONDS), "not all the items expired");
+            assertEquals(0, wheel.size());
+        }
+
+        for (int i = 0; i < delaysMs.length; i++) {
+            long waitedNanos = expiredNanos.get(i) - scheduledNanos.get(i);
+            assertTrue(waitedNanos >= TimeUnit.MILLISECONDS.toNanos(delaysMs[i]),
+                    "item " + i + " expired after " + waitedNanos + " ns, before its " + delaysMs[i] + " ms delay");
+        }
+    }
+
+    @Test
+    public void itemsBeyondOneWheelTurnWaitForTheirTurn() throws InterruptedException {
+        List<String> expired = new CopyOnWriteArrayList<>();
+        CountDownLatch allExpired = new CountDownLatch(3);
+
+        try (HashedTimingWheel<String> wheel = new HashedTimingWheel<>(TICK_MS, TimeUnit.MILLISECONDS, WHEEL_SIZE,
+                item -> {
+                    expired.add(item);
+                    allExpired.countDown();
+                })) {
+            // Same bucket (one, two and three wheel turns apart), scheduled in reverse order
+            wheel.schedule("third", 3 * 80 + 20, TimeUnit.MILLISECONDS);
+            wheel.schedule("second", 2 * 80 + 20, TimeUnit.MILLISECONDS);
+            wheel.schedule("first", 80 + 20, TimeUnit.MILLISECONDS);
+            assertEquals(3, wheel.size());
+
+            assertTrue(allExpired.await(5, TimeUnit.SECONDS), "not all the items expired");
+        }
+
+        assertEquals(List.of("first", "second", "third"), expired);
+    }
+
+    @Test
+    public void itemsAreCountedUntilHandedOver() throws InterruptedException {
+        int numItems = 50;
+        BlockingQueue<Integer> handedOver = new LinkedBlockingQueue<>();
+
+        try (HashedTimingWheel<Integer> wheel = new HashedTimingWheel<>(TICK_MS, TimeUnit.MILLISECONDS, WHEEL_SIZE,
+                item -> {
+                    // Widens the hand-over window
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    handedOver.add(item);
+                })) {
+            for (int i = 0; i < numItems; i++) {
+                wheel.schedule(i, i % 30, TimeUnit.MILLISECONDS);
+            }
+
+            long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (handedOver.size() < numItems) {
+                assertTrue(System.nanoTime() < deadlineNanos, "not all the items expired");
+                // The wheel size first: an item leaves the wheel only once it's in the queue
+                int outstanding = wheel.size() + handedOver.size();
+                assertTrue(outstanding >= numItems, "only " + outstanding + " items accounted for");
+            }
+            assertEquals(0, wheel.size());
+        }
+    }
+
+    @Test
+    public void closeDropsTheScheduledItems() throws InterruptedException {
+        List<String> expired = new CopyOnWriteArrayList<>();
+        HashedTimingWheel<String> wheel = new HashedTimingWheel<>(TICK_MS, TimeUnit.MILLISECONDS, WHEEL_SIZE,
+                expired::add);
+        wheel.schedule("later", 200, TimeUnit.MILLISECONDS);
+        wheel.close();
+
+        Thread.sleep(300);
+        assertTrue(expired.isEmpty());
+    }
+
+    @Test
+    public void invalidParameters() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new HashedTimingWheel<String>(0, TimeUnit.MILLISECONDS, WHEEL_SIZE, item -> { }));
+        assertThrows(IllegalArgumentException.class,
+                () -> new HashedTimingWheel<String>(TICK_MS, TimeUnit.MILLISECONDS, 0, item -> { }));
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.pulsarworkshop.common.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KeyStripedWorkerPoolTest {
+
+    private static class Item {
+        final String key;
+        final int seq;
+
+        Item(String key, int seq) {
+            this.key = key;
+            this.seq = seq;
+        }
+    }
+
+    @Test
+    public void itemsOfAKeyAreHandledInSubmissionOrder() throws InterruptedException {
+        int numKeys = 50;
+        int itemsPerKey = 200;
+        Map<String, List<Integer>> handledSeqs = new ConcurrentHashMap<>();
+        Set<String> handlingThreads = ConcurrentHashMap.newKeySet();
+
+        try (KeyStripedWorkerPool<Item> workerPool = new KeyStripedWorkerPool<>("test-worker", 4, 16, item -> {
+            handlingThreads.add(Thread.currentThread().getName());
+            // Uneven handling times, so that the workers interleave
+            if (ThreadLocalRandom.current().nextInt(20) == 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            handledSeqs.computeIfAbsent(item.key, k -> new CopyOnWriteArrayList<>()).add(item.seq);
+        })) {
+            for (int seq = 0; seq < itemsPerKey; seq++) {
+                for (int k = 0; k < numKeys; k++) {
+                    String key = "key-" + k;
+                    workerPool.submit(key, new Item(key, seq));
+                }
+            }
+        }
+
+        // close() returns once all the submitted items are handled
+        assertEquals(numKeys, handledSeqs.size());
+        List<Integer> expectedSeqs = new ArrayList<>();
+        for (int seq = 0; seq < itemsPerKey; seq++) {
+            expectedSeqs.add(seq);
+        }
+        for (Map.Entry<String, List<Integer>> entry : handledSeqs.entrySet()) {
+            assertEquals(expectedSeqs, entry.getValue(), "order of " + entry.getKey());
+        }
+        assertTrue(handlingThreads.size() > 1, "the keys should be spread over the workers");
+    }
+
+    @Test
+    public void itemsWithoutKeyAreAllHandled() {
+        AtomicInteger handled = new AtomicInteger();
+        Set<String> handlingThreads = ConcurrentHashMap.newKeySet();
+
+        try (KeyStripedWorkerPool<Integer> workerPool = new KeyStripedWorkerPool<>("test-worker", 4, 8, item -> {
+            handlingThreads.add(Thread.currentThread().getName());
+            handled.incrementAndGet();
+        })) {
+            for (int i = 0; i < 1000; i++) {
+                workerPool.submit(null, i);
+            }
+        } catch (InterruptedException ie) {
+            throw new AssertionError(ie);
+        }
+
+        assertEquals(1000, handled.get());
+        assertEquals(4, handlingThreads.size());
+    }
+
+    @Test
+    public void workerSurvivesHandlerErrors() {
+        List<Integer> handled = new CopyOnWriteArrayList<>();
+
+        // A dead worker would block "submit()" once its queue (capacity 2) is full
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            try (KeyStripedWorkerPool<Integer> workerPool = new KeyStripedWorkerPool<>("test-worker", 1, 2, item -> {
+                if (item % 10 == 0) {
+                    throw new AssertionError("handler error for item " + item);
+                }
+                if (item % 10 == 5) {
+                    throw new IllegalStateException("handler exception for item " + item);
+                }
+                handled.add(item);
+            })) {
+                for (int i = 0; i < 100; i++) {
+                    workerPool.submit("same-key", i);
+                }
+            }
+        });
+
+        assertEquals(80, handled.size());
+        for (int i = 1; i < handled.size(); i++) {
+            assertTrue(handled.get(i - 1) < handled.get(i));
+        }
+    }
+
+    @Test
+    public void closeRestoresTheInterruptFlag() throws InterruptedException {
+        KeyStripedWorkerPool<Integer> workerPool = new KeyStripedWorkerPool<>("test-worker", 1, 2, item -> {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        workerPool.submit(null, 1);
+
+        Thread.currentThread().interrupt();
+        workerPool.close();
+        // Clears the flag for the next tests
+        assertTrue(Thread.interrupted());
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.pulsarworkshop.common.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OffHeapKeyValueStoreTest {
+
+    // Small segments, so that a few updates fill several of them and trigger the compaction
+    private final static int SEGMENT_SIZE = 1024;
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void putAndOverwrite() {
+        OffHeapKeyValueStore store = new OffHeapKeyValueStore(SEGMENT_SIZE);
+        assertNull(store.get("k1"));
+
+        store.put("k1", bytes("v1"));
+        store.put("k2", bytes("v2"));
+        assertArrayEquals(bytes("v1"), store.get("k1"));
+        assertArrayEquals(bytes("v2"), store.get("k2"));
+
+        store.put("k1", bytes("v1-updated"));
+        assertArrayEquals(bytes("v1-updated"), store.get("k1"));
+        assertEquals(2, store.size());
+        // Record header (8 bytes) + key + value
+        assertEquals((8 + 2 + 10) + (8 + 2 + 2), store.getLiveBytes());
+    }
+
+    @Test
+    public void emptyValueAndNonAsciiKey() {
+        OffHeapKeyValueStore store = new OffHeapKeyValueStore(SEGMENT_SIZE);
+        store.put("clé-ü", new byte[0]);
+        assertArrayEquals(new byte[0], store.get("clé-ü"));
+        assertNull(store.get("cle-u"));
+    }
+
+    @Test
+    public void removeAndPutAgain() {
+        OffHeapKeyValueStore store = new OffHeapKeyValueStore(SEGMENT_SIZE);
+        store.put("k1", bytes("v1"));
+        store.put("k2", bytes("v2"));
+
+        store.remove("k1");
+        assertNull(store.get("k1"));
+        assertArrayEquals(bytes("v2"), store.get("k2"));
+        assertEquals(1, store.size());
+
+        // Removing a missing key is a no-op
+        store.remove("k1");
+        store.remove("missing");
+        assertEquals(1, store.size());
+
+        // The removed slot can be reused
+        store.put("k1", bytes("v1-again"));
+        assertArrayEquals(bytes("v1-again"), store.get("k1"));
+        assertEquals(2, store.size());
+        assertEquals((8 + 2 + 8) + (8 + 2 + 2), store.getLiveBytes());
+    }
+
+    @Test
+    public void resizeKeepsAllEntries() {
+        OffHeapKeyValueStore store = new OffHeapKeyValueStore(SEGMENT_SIZE);
+        // Well above the initial index capacity (1024 slots)
+        int numKeys = 10_000;
+        for (int i = 0; i < numKeys; i++) {
+            store.put("key-" + i, bytes("value-" + i));
+        }
+
+        assertEquals(numKeys, store.size());
+        for (int i = 0; i < numKeys; i++) {
+            assertArrayEquals(bytes("value-" + i), store.get("key-" + i), "key-" + i);
+        }
+    }
+
+    @Test
+    public void removedSlotsDontFillTheIndex() {
+        OffHeapKeyValueStore store = new OffHeapKeyValueStore(SEGMENT_SIZE);
+        // Many more put/remove cycles than index slots: the removed slots must be reclaimed
+        for (int i = 0; i < 50_000; i++) {
+            store.put("key-" + i, bytes("v"));
+            store.remove("key-" + i);
+        }
+        store.put("last", bytes("v"));
+
+        assertEquals(1, store.size());
+        assertArrayEquals(bytes("v"), store.get("last"));
+    }
+
+    @Test
+    public void compactionKeepsTheLatestValues() {
+        OffHeapKeyValueStore store = new OffHeapKeyValueStore(SEGMENT_SIZE);
+        int numKeys = 20;
+        int numRounds = 500;
+        for (int round = 0; round < numRounds; round++) {
+            for (int i = 0; i < numKeys; i++) {
+                store.put("key-" + i, bytes("value-" + i + "-" + round));
+            }
+        }
+
+        assertEquals(numKeys, store.size());
+        long expectedLiveBytes = 0;
+        for (int i = 0; i < numKeys; i++) {
+            byte[] expectedValue = bytes("value-" + i + "-" + (numRounds - 1));
+            assertArrayEquals(expectedValue, store.get("key-" + i));
+            expectedLiveBytes += 8 + ("key-" + i).length() + expectedValue.length;
+        }
+        assertEquals(expectedLiveBytes, store.getLiveBytes());
+
+        // Without compaction, the updates would hold about 500 KB of segments
+        long indexBytes = 1024 * 16;
+        assertTrue(store.getAllocatedBytes() - indexBytes <= 4 * SEGMENT_SIZE,
+                "allocated bytes: " + store.getAllocatedBytes());
+    }
+
+    @Test
+    public void recordLargerThanASegment() {
+        OffHeapKeyValueStore store = new OffHeapKeyValueStore(SEGMENT_SIZE);
+        byte[] largeValue = new byte[SEGMENT_SIZE * 3];
+        new Random(1).nextBytes(largeValue);
+
+        store.put("small-1", bytes("v1"));
+        store.put("large", largeValue);
+        store.put("small-2", bytes("v2"));
+
+        assertArrayEquals(largeValue, store.get("large"));
+        assertArrayEquals(bytes("v1"), store.get("small-1"));
+        assertArrayEquals(bytes("v2"), store.get("small-2"));
+    }
+
+    @Test
+    public void randomOperationsMatchAHashMap() {
+        OffHeapKeyValueStore store = new OffHeapKeyValueStore(SEGMENT_SIZE);
+        Map<String, byte[]> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200_000; i++) {
+            String key = "key-" + random.nextInt(2_000);
+            int op = random.nextInt(10);
+            if (op < 6) {
+                byte[] value = new byte[random.nextInt(64)];
+                random.nextBytes(value);
+                store.put(key, value);
+                expected.put(key, value);
+            }
+            else if (op < 8) {
+                store.remove(key);
+                expected.remove(key);
+            }
+            else {
+                byte[] expectedValue = expected.get(key);
+                if (expectedValue == null) {
+                    assertNull(store.get(key));
+                }
+                else {
+                    assertArrayEquals(expectedValue, store.get(key));
+                }
+            }
+        }
+
+        assertEquals(expected.size(), store.size());
+        long expectedLiveBytes = 0;
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getValue(), store.get(entry.getKey()));
+            expectedLiveBytes += 8 + entry.getKey().length() + entry.getValue().length;
+        }
+        assertEquals(expectedLiveBytes, store.getLiveBytes());
+    }
+}
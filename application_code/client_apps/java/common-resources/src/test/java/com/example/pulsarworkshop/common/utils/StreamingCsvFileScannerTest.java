@@ -0,0 +1,253 @@
+package com.example.pulsarworkshop.common.utils;
+
+import org.apache.commons.compress.compressors.lz4.XXHash32;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StreamingCsvFileScannerTest {
+
+    // Same as the scanner's read-ahead block size
+    private final static int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    // Uncompressed workload content, and the lines the scanner must return (without line ending)
+    private static byte[] content;
+    private static List<byte[]> expectedLines;
+
+    @TempDir
+    static Path tempDir;
+
+    /**
+     * Lines laid out around the block boundaries:
+     * - block 1 ends with a "\n", block 2 starts a new line
+     * - the "\r" of a "\r\n" is the last byte of block 2, the "\n" the first byte of block 3
+     * - an empty line across the end of block 3
+     * - a line longer than two blocks, from block 4 to block 6
+     * - random length lines (both line endings) over the following blocks
+     * - a last line without line ending
+     */
+    @BeforeAll
+    public static void createContent() {
+        ContentBuilder builder = new ContentBuilder();
+
+        builder.padTo(BLOCK_SIZE);
+        builder.addLine("starts-block-2", "\n");
+
+        builder.padTo(2 * BLOCK_SIZE - "crlf-split".length() - 1);
+        builder.addLine("crlf-split", "\r\n");
+        builder.addLine("starts-after-crlf", "\n");
+
+        builder.padTo(3 * BLOCK_SIZE - 1);
+        builder.addLine("", "\n");
+        builder.addLine("", "\r\n");
+
+        builder.padTo(3 * BLOCK_SIZE + 100);
+        builder.addLine(builder.filler(2 * BLOCK_SIZE + 12_345, 'L'), "\n");
+
+        Random random = new Random(42);
+        while (builder.size() < 8 * BLOCK_SIZE) {
+            builder.addLine(builder.filler(random.nextInt(300_000), 'r'), random.nextBoolean() ? "\n" : "\r\n");
+        }
+        builder.addLine("last-line-without-line-ending", "");
+
+        content = builder.out.toByteArray();
+        expectedLines = builder.lines;
+    }
+
+    private static class ContentBuilder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final List<byte[]> lines = new ArrayList<>();
+        private final Random fillerRandom = new Random(7);
+        private int lineCount = 0;
+
+        int size() {
+            return out.size();
+        }
+
+        void addLine(String line, String lineEnding) {
+            byte[] lineBytes = line.getBytes(StandardCharsets.US_ASCII);
+            out.writeBytes(lineBytes);
+            out.writeBytes(lineEnding.getBytes(StandardCharsets.US_ASCII));
+            lines.add(lineBytes);
+        }
+
+        // Adds a line so that the next one starts at the position
+        void padTo(int position) {
+            int fillerLength = position - out.size() - 1;
+            if (fillerLength < 0) {
+                throw new IllegalStateException("Already past position " + position);
+            }
+            addLine(filler(fillerLength, 'f'), "\n");
+        }
+
+        // Distinct content per line, so that a mixed up line doesn't go unnoticed
+        String filler(int length, char c) {
+            String prefix = (lineCount++) + ":" + c;
+            if (length <= prefix.length()) {
+                return prefix.substring(0, length);
+            }
+            char[] chars = new char[length - prefix.length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) ('a' + fillerRandom.nextInt(26));
+            }
+            return prefix + new String(chars);
+        }
+    }
+
+    private static File writeFile(String fileName) throws IOException {
+        File file = tempDir.resolve(fileName).toFile();
+        try (OutputStream fileStream = Files.newOutputStream(file.toPath())) {
+            if (fileName.endsWith(".lz4")) {
+                writeLz4Frame(fileStream, content);
+            }
+            else {
+                try (OutputStream out = compress(fileName, fileStream)) {
+                    out.write(content);
+                }
+            }
+        }
+        return file;
+    }
+
+    private static OutputStream compress(String fileName, OutputStream fileStream) throws IOException {
+        if (fileName.endsWith(".gz")) {
+            return new GZIPOutputStream(fileStream);
+        } else if (fileName.endsWith(".zst")) {
+            return new ZstdCompressorOutputStream(fileStream);
+        }
+        return fileStream;
+    }
+
+    /**
+     * LZ4 frame with uncompressed data blocks (4 MB max), as the LZ4 frame writer of
+     * commons-compress 1.21 fails on large inputs (IndexOutOfBoundsException in "rewriteLastPairs").
+     */
+    private static void writeLz4Frame(OutputStream out, byte[] data) throws IOException {
+        int maxBlockSize = 4 * 1024 * 1024;
+        // Version 01, independent blocks, no checksum; 4 MB max block size
+        byte[] descriptor = {0x60, 0x70};
+        XXHash32 headerHash = new XXHash32();
+        headerHash.update(descriptor, 0, descriptor.length);
+
+        writeIntLE(out, 0x184D2204);
+        out.write(descriptor);
+        out.write((int) ((headerHash.getValue() >> 8) & 0xFF));
+        for (int offset = 0; offset < data.length; offset += maxBlockSize) {
+            int blockSize = Math.min(maxBlockSize, data.length - offset);
+            // The high bit flags an uncompressed block
+            writeIntLE(out, blockSize | 0x80000000);
+            out.write(data, offset, blockSize);
+        }
+        // End mark
+        writeIntLE(out, 0);
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static void assertScannedLines(File file) throws IOException {
+        try (StreamingCsvFileScannerCloser closer = new StreamingCsvFileScannerCloser(file)) {
+            StreamingCsvFileScanner scanner = closer.scanner;
+            for (int i = 0; i < expectedLines.size(); i++) {
+                assertTrue(scanner.hasNextLine(), "missing line " + i);
+                assertArrayEquals(expectedLines.get(i), scanner.nextLineView().toBytes(), "line " + i);
+            }
+            assertFalse(scanner.hasNextLine());
+            assertEquals(content.length, scanner.getPosition());
+        }
+    }
+
+    // Closes the scanner with try-with-resources
+    private static class StreamingCsvFileScannerCloser implements AutoCloseable {
+        private final StreamingCsvFileScanner scanner;
+
+        StreamingCsvFileScannerCloser(File file) throws IOException {
+            this.scanner = new StreamingCsvFileScanner(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            scanner.close();
+        }
+    }
+
+    @Test
+    public void linesAcrossBlockBoundaries() throws IOException {
+        assertScannedLines(writeFile("workload.csv"));
+    }
+
+    @Test
+    public void linesAcrossBlockBoundariesGzip() throws IOException {
+        assertScannedLines(writeFile("workload.csv.gz"));
+    }
+
+    @Test
+    public void linesAcrossBlockBoundariesZstd() throws IOException {
+        assertScannedLines(writeFile("workload.csv.zst"));
+    }
+
+    @Test
+    public void linesAcrossBlockBoundariesLz4() throws IOException {
+        assertScannedLines(writeFile("workload.csv.lz4"));
+    }
+
+    @Test
+    public void skipToALinePosition() throws IOException {
+        File file = writeFile("skip.csv.gz");
+        // The position of the line starting block 2
+        int lineIdx = 1;
+        try (StreamingCsvFileScannerCloser closer = new StreamingCsvFileScannerCloser(file)) {
+            closer.scanner.skipTo(BLOCK_SIZE);
+            assertEquals(BLOCK_SIZE, closer.scanner.getPosition());
+            assertArrayEquals(expectedLines.get(lineIdx), closer.scanner.nextLineView().toBytes());
+        }
+    }
+
+    @Test
+    public void corruptInputFailsInsteadOfBlocking() throws IOException {
+        // Valid compressed header, truncated and corrupt data
+        File validFile = writeFile("valid.csv.zst");
+        byte[] corrupt = Arrays.copyOf(Files.readAllBytes(validFile.toPath()), 64 * 1024);
+        for (int i = 32; i < corrupt.length; i += 7) {
+            corrupt[i] ^= 0x5A;
+        }
+        File corruptFile = tempDir.resolve("corrupt.csv.zst").toFile();
+        Files.write(corruptFile.toPath(), corrupt);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            try (StreamingCsvFileScannerCloser closer = new StreamingCsvFileScannerCloser(corruptFile)) {
+                assertThrows(IOException.class, () -> {
+                    while (closer.scanner.hasNextLine()) {
+                        closer.scanner.nextLineView();
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,400 @@
+package com.example.pulsarworkshop;
+
+import com.example.pulsarworkshop.common.PulsarWorkshopCmdApp;
+import com.example.pulsarworkshop.common.exception.InvalidParamException;
+import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+import com.example.pulsarworkshop.common.metrics.Counter;
+import com.example.pulsarworkshop.common.metrics.Meter;
+import com.example.pulsarworkshop.common.utils.LatencyRecorder;
+import com.example.pulsarworkshop.common.utils.TokenBucketRateLimiter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.Option;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.pulsar.client.api.*;
+import org.apache.pulsar.client.util.RetryMessageUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drains a dead letter topic back into the main topic ("-topic"), e.g. once a downstream
+ * outage is over:
+ * - the dead letter topic is read in batches ("batchReceive()")
+ * - each message is republished with its key, ordering key, properties and event time,
+ *   through a pipelined async producer (bounded by "-maxInFlight")
+ * - a batch is acknowledged as a whole once all its messages are published; if some of them
+ *   fail, only the published ones are acknowledged and the failed ones are negatively
+ *   acknowledged (so redelivered later), so that no message is replayed twice
+ *
+ * "-msgRate" caps the replay rate, so that the consumers of the main topic aren't overwhelmed.
+ * The replay stops after "-numMsg" messages (-1: all of them), or once no message has been
+ * received for "-idleExit" seconds.
+ */
+public class DlqReplayApp extends PulsarWorkshopCmdApp {
+
+    private final static Logger logger = LoggerFactory.getLogger(DlqReplayApp.class);
+
+    private final static String DEFAULT_SUBSCRIPTION_NAME = "dlq-replay";
+    private final static int DEFAULT_BATCH_SIZE = 500;
+    private final static int DEFAULT_MAX_IN_FLIGHT_MSG = 1000;
+    private final static int DEFAULT_IDLE_EXIT_SEC = 10;
+    private final static int DEFAULT_PROGRESS_INTERVAL_SEC = 10;
+    private final static int BATCH_RECEIVE_TIMEOUT_MS = 100;
+    private final static int BATCH_RECEIVE_MAX_BYTES = 10 * 1024 * 1024;
+
+    // Retry bookkeeping added by the client; not replayed, so that the replayed messages start
+    // over with the redelivery policy of the main topic consumers
+    private final static Set<String> RETRY_SYSTEM_PROPERTIES = Set.of(
+            RetryMessageUtil.SYSTEM_PROPERTY_RECONSUMETIMES,
+            RetryMessageUtil.SYSTEM_PROPERTY_DELAY_TIME,
+            RetryMessageUtil.SYSTEM_PROPERTY_RETRY_TOPIC);
+
+    private String deadLetterTopicName;
+    private String subsriptionName = DEFAULT_SUBSCRIPTION_NAME;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int maxInFlightMsg = DEFAULT_MAX_IN_FLIGHT_MSG;
+    private int idleExitSec = DEFAULT_IDLE_EXIT_SEC;
+    private int progressIntervalSec = DEFAULT_PROGRESS_INTERVAL_SEC;
+
+    private PulsarClient pulsarClient;
+    private Consumer<byte[]> pulsarConsumer;
+    private Producer<byte[]> pulsarProducer;
+
+    // Only set with "-msgRate"
+    private TokenBucketRateLimiter rateLimiter;
+    // Bounds the number of messages sent but not yet acknowledged by the broker
+    private Semaphore inFlightPermits;
+    // Acknowledgements of the batches whose messages are still being published
+    private final List<CompletableFuture<Void>> pendingBatches = new ArrayList<>();
+
+    private ScheduledExecutorService progressScheduler;
+    private long lastProgressCount = 0;
+    private long startNanos;
+
+    private final Meter receiveMeter = metricsRegistry.meter("receive.messages");
+    private final Meter replayMeter = metricsRegistry.meter("replay.messages");
+    private final Meter ackMeter = metricsRegistry.meter("ack.messages");
+    private final Counter sendErrorCounter = metricsRegistry.counter("send.errors");
+    private final Counter failedBatchCounter = metricsRegistry.counter("replay.failedBatches");
+    // Measured from the intended send time (the token time with "-msgRate")
+    private final LatencyRecorder sendLatencyRecorder = metricsRegistry.histogram("send.latency");
+
+    public DlqReplayApp(String[] inputParams) {
+        super(inputParams);
+
+        addCommandLineOption(new Option("dlq", "dlqTopic", true,
+                "Dead letter topic to replay into the main topic (\"-topic\")."));
+        addCommandLineOption(new Option("sbn", "subName", true,
+                "Subscription name on the dead letter topic (default: " + DEFAULT_SUBSCRIPTION_NAME + ")."));
+        addCommandLineOption(new Option("bs", "batchSize", true,
+                "Max. number of messages received (and acknowledged) per batch (default: " + DEFAULT_BATCH_SIZE + ")."));
+        addCommandLineOption(new Option("mif", "maxInFlight", true,
+                "Max. number of republished messages not yet acknowledged by the broker " +
+                "(default: " + DEFAULT_MAX_IN_FLIGHT_MSG + ")."));
+        addCommandLineOption(new Option("ie", "idleExit", true,
+                "Stop once no message has been received for this number of seconds " +
+                "(default: " + DEFAULT_IDLE_EXIT_SEC + ")."));
+        addCommandLineOption(new Option("pi", "progressInterval", true,
+                "Progress reporting interval in seconds (default: " + DEFAULT_PROGRESS_INTERVAL_SEC + ")."));
+    }
+
+    public static void main(String[] args) {
+        PulsarWorkshopCmdApp workshopApp = new DlqReplayApp(args);
+
+        int exitCode = workshopApp.run("DlqReplayApp");
+
+        System.exit(exitCode);
+    }
+
+    @Override
+    public void processInputParams() throws InvalidParamException {
+        // (Required) Dead letter topic
+        deadLetterTopicName = processStringInputParam("dlq");
+        if (StringUtils.isBlank(deadLetterTopicName)) {
+            throw new InvalidParamException("dlqTopic", "must be set");
+        }
+        if (StringUtils.equals(deadLetterTopicName, pulsarTopicName)) {
+            throw new InvalidParamException("dlqTopic", "must be different from the main topic");
+        }
+
+        // (Optional) Subscription name on the dead letter topic
+        subsriptionName = StringUtils.defaultIfBlank(processStringInputParam("sbn"), DEFAULT_SUBSCRIPTION_NAME);
+
+        if (StringUtils.isNotBlank(processStringInputParam("bs"))) {
+            batchSize = processIntegerInputParam("bs");
+            if (batchSize <= 0) {
+                throw new InvalidParamException("batchSize", "must be a positive integer");
+            }
+        }
+        if (StringUtils.isNotBlank(processStringInputParam("mif"))) {
+            maxInFlightMsg = processIntegerInputParam("mif");
+            if (maxInFlightMsg <= 0) {
+                throw new InvalidParamException("maxInFlight", "must be a positive integer");
+            }
+        }
+        if (StringUtils.isNotBlank(processStringInputParam("ie"))) {
+            idleExitSec = processIntegerInputParam("ie");
+            if (idleExitSec <= 0) {
+                throw new InvalidParamException("idleExit", "must be a positive integer");
+            }
+        }
+        if (StringUtils.isNotBlank(processStringInputParam("pi"))) {
+            progressIntervalSec = processIntegerInputParam("pi");
+            if (progressIntervalSec <= 0) {
+                throw new InvalidParamException("progressInterval", "must be a positive integer");
+            }
+        }
+    }
+
+    @Override
+    public void runApp() {
+        try {
+            if (numMsg == -1) {
+                numMsg = Integer.MAX_VALUE;
+            }
+
+            pulsarClient = createNativePulsarClient();
+            pulsarConsumer = createDeadLetterConsumer();
+            // Republished as is; validated against the schema of the main topic, if any
+            pulsarProducer = createPulsarProducerBuilder(pulsarTopicName, pulsarClient, Schema.AUTO_PRODUCE_BYTES())
+                    .create();
+            registerClientStats(pulsarProducer);
+
+            rateLimiter = createRateLimiter();
+            inFlightPermits = new Semaphore(maxInFlightMsg);
+
+            logger.info("Replaying dead letter topic {} (subscription {}) into {}",
+                    deadLetterTopicName, subsriptionName, pulsarTopicName);
+            startNanos = System.nanoTime();
+            startProgressReporting();
+
+            long received = 0;
+            long lastReceiveNanos = System.nanoTime();
+            while (received < numMsg) {
+                Messages<byte[]> messages = pulsarConsumer.batchReceive();
+                if (messages.size() == 0) {
+                    if (System.nanoTime() - lastReceiveNanos >= TimeUnit.SECONDS.toNanos(idleExitSec)) {
+                        logger.info("No message received for {} seconds, the dead letter topic is drained", idleExitSec);
+                        break;
+                    }
+                    continue;
+                }
+                lastReceiveNanos = System.nanoTime();
+                receiveMeter.mark(messages.size());
+
+                // The messages beyond "-numMsg" stay in the dead letter topic
+                List<Message<byte[]>> batch = new ArrayList<>(messages.size());
+                for (Message<byte[]> message : messages) {
+                    if (received < numMsg) {
+                        batch.add(message);
+                        received++;
+                    }
+                    else {
+                        pulsarConsumer.negativeAcknowledge(message);
+                    }
+                }
+                replayBatch(batch);
+            }
+
+            // Wait for the last batches to be published and acknowledged
+            pulsarProducer.flush();
+            CompletableFuture.allOf(pendingBatches.toArray(new CompletableFuture<?>[0])).join();
+
+            logReplaySummary(System.nanoTime() - startNanos);
+        }
+        catch (PulsarClientException pce) {
+            throw new WorkshopRuntimException("Unexpected error when replaying Pulsar messages: " + pce.getMessage());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkshopRuntimException("Interrupted while replaying Pulsar messages!");
+        }
+    }
+
+    // Shared subscription (several replay apps can drain the same dead letter topic), from
+    // the earliest message unless "consumer.subscriptionInitialPosition" is set
+    private Consumer<byte[]> createDeadLetterConsumer() throws PulsarClientException {
+        ConsumerBuilder<byte[]> consumerBuilder = createPulsarConsumerBuilder(
+                deadLetterTopicName, pulsarClient, subsriptionName, SubscriptionType.Shared);
+
+        Map<String, Object> consumerConfMap = getPulsarExtraCfgConf().getConsumerConfMapTgt();
+        if (!consumerConfMap.containsKey("subscriptionInitialPosition")) {
+            consumerBuilder.subscriptionInitialPosition(SubscriptionInitialPosition.Earliest);
+        }
+        if (!consumerConfMap.containsKey("batchReceivePolicy")) {
+            consumerBuilder.batchReceivePolicy(BatchReceivePolicy.builder()
+                    .maxNumMessages(batchSize)
+                    .maxNumBytes(BATCH_RECEIVE_MAX_BYTES)
+                    .timeout(BATCH_RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .build());
+        }
+        // The replay itself isn't redelivered to a retry or dead letter topic, and every message is
+        // explicitly acknowledged or negatively acknowledged. So the configured dead letter policy,
+        // its implied ack timeout and the retry topic (which the client would subscribe to, with a
+        // default dead letter policy) are all reset.
+        consumerBuilder.deadLetterPolicy(null);
+        consumerBuilder.enableRetry(false);
+        consumerBuilder.ackTimeout(0, TimeUnit.MILLISECONDS);
+
+        Consumer<byte[]> consumer = consumerBuilder.subscribe();
+        registerClientStats(consumer);
+        return consumer;
+    }
+
+    // The next batch is received while this one is still being published
+    private void replayBatch(List<Message<byte[]>> batch) throws InterruptedException {
+        // Per message: whether it's published
+        List<CompletableFuture<Boolean>> sendFutures = new ArrayList<>(batch.size());
+        for (Message<byte[]> message : batch) {
+            long intendedNanos = (rateLimiter != null) ? rateLimiter.acquire() : System.nanoTime();
+            inFlightPermits.acquire();
+            sendFutures.add(republish(message).handle((messageId, throwable) -> {
+                inFlightPermits.release();
+                if (throwable == null) {
+                    sendLatencyRecorder.recordSince(intendedNanos);
+                    replayMeter.mark();
+                    return true;
+                }
+                sendErrorCounter.inc();
+                logger.warn("Failed to republish message {}: {}", message.getMessageId(), throwable.getMessage());
+                return false;
+            }));
+        }
+
+        CompletableFuture<Void> batchFuture = CompletableFuture
+                .allOf(sendFutures.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(v -> {
+                    // Only the failed messages are redelivered: the published ones would be duplicates
+                    List<MessageId> publishedIds = new ArrayList<>(batch.size());
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (sendFutures.get(i).join()) {
+                            publishedIds.add(batch.get(i).getMessageId());
+                        }
+                        else {
+                            pulsarConsumer.negativeAcknowledge(batch.get(i));
+                        }
+                    }
+                    if (publishedIds.size() < batch.size()) {
+                        failedBatchCounter.inc();
+                    }
+                    if (publishedIds.isEmpty()) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return pulsarConsumer.acknowledgeAsync(publishedIds)
+                            .handle((ackResult, ackThrowable) -> {
+                                if (ackThrowable == null) {
+                                    ackMeter.mark(publishedIds.size());
+                                }
+                                else {
+                                    logger.warn("Failed to acknowledge a batch of {} messages: {}",
+                                            publishedIds.size(), ackThrowable.getMessage());
+                                }
+                                return null;
+                            });
+                });
+
+        pendingBatches.removeIf(CompletableFuture::isDone);
+        pendingBatches.add(batchFuture);
+    }
+
+    private CompletableFuture<MessageId> republish(Message<byte[]> message) {
+        TypedMessageBuilder<byte[]> messageBuilder = pulsarProducer.newMessage().value(message.getData());
+
+        if (message.hasBase64EncodedKey()) {
+            messageBuilder.keyBytes(message.getKeyBytes());
+        }
+        else if (message.hasKey()) {
+            messageBuilder.key(message.getKey());
+        }
+        if (message.hasOrderingKey()) {
+            messageBuilder.orderingKey(message.getOrderingKey());
+        }
+        if (message.getEventTime() > 0) {
+            messageBuilder.eventTime(message.getEventTime());
+        }
+
+        Map<String, String> properties = new HashMap<>(message.getProperties());
+        properties.keySet().removeAll(RETRY_SYSTEM_PROPERTIES);
+        if (!properties.isEmpty()) {
+            messageBuilder.properties(properties);
+        }
+
+        return messageBuilder.sendAsync();
+    }
+
+    private void startProgressReporting() {
+        progressScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "replay-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progressScheduler.scheduleAtFixedRate(this::logProgress,
+                progressIntervalSec, progressIntervalSec, TimeUnit.SECONDS);
+    }
+
+    private void logProgress() {
+        long replayed = replayMeter.getCount();
+        double elapsedSec = Math.max(System.nanoTime() - startNanos, 1) / 1_000_000_000.0;
+
+        logger.info("Progress: {} messages replayed ({} msg/s, {} msg/s overall), {} acknowledged, " +
+                        "{} in flight, {} send errors",
+                replayed,
+                String.format("%.1f", (replayed - lastProgressCount) / (double) progressIntervalSec),
+                String.format("%.1f", replayed / elapsedSec),
+                ackMeter.getCount(),
+                maxInFlightMsg - inFlightPermits.availablePermits(),
+                sendErrorCounter.getCount());
+        lastProgressCount = replayed;
+    }
+
+    private void logReplaySummary(long elapsedNanos) {
+        double elapsedSec = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+
+        logger.info("{} messages replayed in {} ms ({} msg/s): {} received, {} acknowledged, " +
+                        "{} send errors (left in the dead letter topic), {} batches with send errors",
+                replayMeter.getCount(),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                String.format("%.1f", replayMeter.getCount() / elapsedSec),
+                receiveMeter.getCount(),
+                ackMeter.getCount(),
+                sendErrorCounter.getCount(),
+                failedBatchCounter.getCount());
+        logger.info("Send latency: {}", LatencyRecorder.getSummaryStr(sendLatencyRecorder.getAccumulatedHistogram()));
+    }
+
+    @Override
+    public void termApp() {
+        try {
+            if (progressScheduler != null) {
+                progressScheduler.shutdownNow();
+            }
+
+            if (pulsarProducer != null) {
+                unregisterClientStats(pulsarProducer);
+                pulsarProducer.close();
+            }
+
+            if (pulsarConsumer != null) {
+                unregisterClientStats(pulsarConsumer);
+                pulsarConsumer.close();
+            }
+
+            if (pulsarClient != null) {
+                pulsarClient.close();
+            }
+        }
+        catch (PulsarClientException pce) {
+            throw new WorkshopRuntimException("Failed to terminate Pulsar producer, consumer or client!");
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.example.pulsarworkshop;
+
+import com.example.pulsarworkshop.common.PulsarWorkshopCmdApp;
+import com.example.pulsarworkshop.common.exception.InvalidParamException;
+import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+import com.example.pulsarworkshop.common.metrics.Meter;
+import com.example.pulsarworkshop.common.utils.LatencyRecorder;
+import com.example.pulsarworkshop.common.utils.OffHeapKeyValueStore;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.Option;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.pulsar.client.api.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Materializes a compacted topic into a local key -> latest value view, and serves point
+ * lookups in-process. The view is backed by either:
+ * - "tableview": a Pulsar TableView (on-heap map, kept up to date by the client)
+ * - "offheap": a compacted reader ("readCompacted", plus the "reader.xxx" settings) feeding an
+ *   {@link OffHeapKeyValueStore}; a message with an empty payload removes its key (tombstone)
+ *
+ * The view is first loaded up to the last message of the topic (the catch-up time is logged and
+ * exported as "view.catchUpMs"). Then the app:
+ * - looks up the "-lookupKeys" keys and runs "-numLookups" random lookups of the loaded keys
+ *   ("lookup.latency")
+ * - keeps the view up to date for "-numMsg" more updates (-1: until stopped). With the offheap
+ *   store, the lag of each update from its publish time is recorded ("view.update.lag").
+ *
+ * The memory footprint is exported as "view.offHeapBytes" / "view.liveBytes" (offheap store)
+ * and "jvm.heapUsedBytes" / "jvm.directBytes".
+ */
+public class MaterializedViewApp extends PulsarWorkshopCmdApp {
+
+    private final static Logger logger = LoggerFactory.getLogger(MaterializedViewApp.class);
+
+    private final static int DEFAULT_NUM_LOOKUPS = 100000;
+    // Keys sampled while loading the view, for the random lookups
+    private final static int KEY_SAMPLE_SIZE = 10000;
+    private final static int READ_TIMEOUT_MS = 1000;
+    private final static int MAX_LOGGED_VALUE_LENGTH = 200;
+
+    enum STORE_TYPE {
+        TableView("tableview"),
+        OffHeap("offheap");
+
+        public final String label;
+
+        STORE_TYPE(String label) {
+            this.label = label;
+        }
+    }
+
+    private STORE_TYPE storeType = STORE_TYPE.TableView;
+    private List<String> lookupKeys = new ArrayList<>();
+    private int numLookups = DEFAULT_NUM_LOOKUPS;
+
+    private PulsarClient pulsarClient;
+    // Only one of them is set, depending on the store type
+    private TableView<byte[]> tableView;
+    private Reader<byte[]> viewReader;
+    private OffHeapKeyValueStore offHeapStore;
+    private Thread viewUpdaterThread;
+
+    // Reservoir sample of the loaded keys
+    private final String[] keySample = new String[KEY_SAMPLE_SIZE];
+    private long numKeysSeen = 0;
+
+    // Counted down by the updates after the initial load
+    private CountDownLatch remainingUpdates;
+    private volatile boolean viewLoaded = false;
+    private long catchUpMillis = -1;
+
+    private final Meter updateMeter = metricsRegistry.meter("view.updates");
+    private final Meter lookupMeter = metricsRegistry.meter("lookup.messages");
+    private final LatencyRecorder updateLagRecorder = metricsRegistry.histogram("view.update.lag");
+    private final LatencyRecorder lookupLatencyRecorder = metricsRegistry.histogram("lookup.latency");
+
+    public MaterializedViewApp(String[] inputParams) {
+        super(inputParams);
+
+        addCommandLineOption(new Option("stt", "storeType", true,
+                "View store: \"" + STORE_TYPE.TableView.label + "\" (default, Pulsar TableView) or \"" +
+                STORE_TYPE.OffHeap.label + "\" (compacted reader and off-heap hash map)."));
+        addCommandLineOption(new Option("lk", "lookupKeys", true,
+                "Keys to look up (and log) once the view is loaded, comma separated."));
+        addCommandLineOption(new Option("nl", "numLookups", true,
+                "Number of random lookups of the loaded keys, to measure the lookup latency " +
+                "(default: " + DEFAULT_NUM_LOOKUPS + ")."));
+    }
+
+    public static void main(String[] args) {
+        PulsarWorkshopCmdApp workshopApp = new MaterializedViewApp(args);
+
+        int exitCode = workshopApp.run("MaterializedViewApp");
+
+        System.exit(exitCode);
+    }
+
+    @Override
+    public void processInputParams() throws InvalidParamException {
+        // (Optional) View store type
+        String storeTypeStr = processStringInputParam("stt");
+        if (StringUtils.isNotBlank(storeTypeStr)) {
+            if (StringUtils.equalsIgnoreCase(storeTypeStr, STORE_TYPE.OffHeap.label)) {
+                storeType = STORE_TYPE.OffHeap;
+            }
+            else if (!StringUtils.equalsIgnoreCase(storeTypeStr, STORE_TYPE.TableView.label)) {
+                throw new InvalidParamException("storeType",
+                        "must be either \"" + STORE_TYPE.TableView.label + "\" or \"" + STORE_TYPE.OffHeap.label + "\"");
+            }
+        }
+
+        // (Optional) Lookups
+        String lookupKeysStr = processStringInputParam("lk");
+        if (StringUtils.isNotBlank(lookupKeysStr)) {
+            for (String lookupKey : StringUtils.split(lookupKeysStr, ',')) {
+                lookupKeys.add(lookupKey.trim());
+            }
+        }
+        if (StringUtils.isNotBlank(processStringInputParam("nl"))) {
+            numLookups = processIntegerInputParam("nl");
+            if (numLookups < 0) {
+                throw new InvalidParamException("numLookups", "must be a positive integer (or 0 for no lookup)");
+            }
+        }
+    }
+
+    @Override
+    public void runApp() {
+        try {
+            remainingUpdates = new CountDownLatch((numMsg == -1) ? Integer.MAX_VALUE : numMsg);
+            registerMemoryGauges();
+
+            pulsarClient = createNativePulsarClient();
+
+            long startNanos = System.nanoTime();
+            if (storeType == STORE_TYPE.OffHeap) {
+                loadOffHeapView();
+            }
+            else {
+                loadTableView();
+            }
+            catchUpMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            metricsRegistry.gauge("view.catchUpMs", () -> catchUpMillis);
+            logger.info("View of topic {} loaded ({}): {} keys in {} ms",
+                    pulsarTopicName, storeType.label, getViewSize(), catchUpMillis);
+
+            runLookups();
+
+            if (numMsg == -1) {
+                logger.info("Keeping the view up to date until stopped");
+            }
+            else {
+                logger.info("Keeping the view up to date for {} more updates", numMsg);
+            }
+            remainingUpdates.await();
+
+            logger.info("View updates: {}; {} keys", updateMeter.getCount(), getViewSize());
+            if (storeType == STORE_TYPE.OffHeap) {
+                logger.info("Update lag: {}", LatencyRecorder.getSummaryStr(updateLagRecorder.getAccumulatedHistogram()));
+            }
+        }
+        catch (PulsarClientException pce) {
+            throw new WorkshopRuntimException("Unexpected error when materializing the Pulsar topic: " + pce.getMessage());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkshopRuntimException("Interrupted while materializing the Pulsar topic!");
+        }
+    }
+
+    // "create()" returns once the table view has read the topic up to its last message
+    private void loadTableView() throws PulsarClientException {
+        tableView = pulsarClient.newTableViewBuilder(Schema.BYTES)
+                .topic(pulsarTopicName)
+                .create();
+        metricsRegistry.gauge("view.entries", () -> tableView.size());
+
+        // Existing keys first (on this thread), then the updates (on the client threads)
+        tableView.forEachAndListen((key, value) -> {
+            if (viewLoaded) {
+                updateMeter.mark();
+                remainingUpdates.countDown();
+            }
+            sampleKey(key);
+        });
+        viewLoaded = true;
+    }
+
+    private void loadOffHeapView() throws PulsarClientException {
+        offHeapStore = new OffHeapKeyValueStore();
+        metricsRegistry.gauge("view.entries", offHeapStore::size);
+        metricsRegistry.gauge("view.offHeapBytes", offHeapStore::getAllocatedBytes);
+        metricsRegistry.gauge("view.liveBytes", offHeapStore::getLiveBytes);
+
+        viewReader = createPulsarReaderBuilder(pulsarTopicName, pulsarClient)
+                .readCompacted(true)
+                .startMessageId(MessageId.earliest)
+                .create();
+        while (viewReader.hasMessageAvailable()) {
+            Message<byte[]> message = viewReader.readNext(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (message != null) {
+                applyToOffHeapStore(message);
+            }
+        }
+        viewLoaded = true;
+
+        viewUpdaterThread = createAppThreadFactory("view-updater").newThread(this::updateOffHeapView);
+        viewUpdaterThread.start();
+    }
+
+    private void updateOffHeapView() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Message<byte[]> message = viewReader.readNext(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (message != null) {
+                    applyToOffHeapStore(message);
+                    updateLagRecorder.recordMicros(
+                            TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() - message.getPublishTime()));
+                    updateMeter.mark();
+                    remainingUpdates.countDown();
+                }
+            }
+        }
+        catch (PulsarClientException pce) {
+            // Also when the reader is closed at the end
+            if (viewLoaded && (remainingUpdates.getCount() > 0) && !Thread.currentThread().isInterrupted()) {
+                logger.error("Failed to read the view updates: {}", pce.getMessage());
+            }
+        }
+    }
+
+    // The messages without a key aren't part of the view
+    private void applyToOffHeapStore(Message<byte[]> message) {
+        if (!message.hasKey()) {
+            return;
+        }
+        byte[] value = message.getData();
+        if (value.length == 0) {
+            offHeapStore.remove(message.getKey());
+        }
+        else {
+            offHeapStore.put(message.getKey(), value);
+            sampleKey(message.getKey());
+        }
+    }
+
+    private synchronized void sampleKey(String key) {
+        if (numKeysSeen < KEY_SAMPLE_SIZE) {
+            keySample[(int) numKeysSeen] = key;
+        }
+        else {
+            long idx = ThreadLocalRandom.current().nextLong(numKeysSeen + 1);
+            if (idx < KEY_SAMPLE_SIZE) {
+                keySample[(int) idx] = key;
+            }
+        }
+        numKeysSeen++;
+    }
+
+    private byte[] lookup(String key) {
+        return (storeType == STORE_TYPE.OffHeap) ? offHeapStore.get(key) : tableView.get(key);
+    }
+
+    private int getViewSize() {
+        return (storeType == STORE_TYPE.OffHeap) ? offHeapStore.size() : tableView.size();
+    }
+
+    private void runLookups() {
+        for (String lookupKey : lookupKeys) {
+            byte[] value = lookup(lookupKey);
+            lookupMeter.mark();
+            logger.info("Lookup \"{}\": {}", lookupKey,
+                    (value == null) ? "<not found>"
+                            : StringUtils.abbreviate(new String(value, StandardCharsets.UTF_8), MAX_LOGGED_VALUE_LENGTH));
+        }
+
+        String[] sampledKeys;
+        synchronized (this) {
+            sampledKeys = Arrays.copyOf(keySample, (int) Math.min(numKeysSeen, KEY_SAMPLE_SIZE));
+        }
+        if ((numLookups == 0) || (sampledKeys.length == 0)) {
+            return;
+        }
+
+        long found = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < numLookups; i++) {
+            String key = sampledKeys[ThreadLocalRandom.current().nextInt(sampledKeys.length)];
+            long lookupStartNanos = System.nanoTime();
+            if (lookup(key) != null) {
+                found++;
+            }
+            lookupLatencyRecorder.recordSince(lookupStartNanos);
+            lookupMeter.mark();
+        }
+        double elapsedSec = Math.max(System.nanoTime() - startNanos, 1) / 1_000_000_000.0;
+        logger.info("{} random lookups ({} found, {} lookups/s): {}",
+                numLookups, found, String.format("%.0f", numLookups / elapsedSec),
+                LatencyRecorder.getSummaryStr(lookupLatencyRecorder.getAccumulatedHistogram()));
+    }
+
+    private void registerMemoryGauges() {
+        metricsRegistry.gauge("jvm.heapUsedBytes",
+                () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        for (BufferPoolMXBean bufferPool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (bufferPool.getName().equals("direct")) {
+                metricsRegistry.gauge("jvm.directBytes", bufferPool::getMemoryUsed);
+            }
+        }
+    }
+
+    @Override
+    public void termApp() {
+        try {
+            if (viewUpdaterThread != null) {
+                viewUpdaterThread.interrupt();
+                viewUpdaterThread.join();
+            }
+
+            if (viewReader != null) {
+                viewReader.close();
+            }
+
+            if (tableView != null) {
+                tableView.close();
+            }
+
+            if (pulsarClient != null) {
+                pulsarClient.close();
+            }
+        }
+        catch (IOException ioe) {
+            throw new WorkshopRuntimException("Failed to terminate the Pulsar view or client!");
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkshopRuntimException("Interrupted while stopping the view updates!");
+        }
+    }
+}
@@ -3,6 +3,12 @@ package com.example.pulsarworkshop;
 import com.example.pulsarworkshop.common.PulsarWorkshopCmdApp;
 import com.example.pulsarworkshop.common.exception.InvalidParamException;
 import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+import com.example.pulsarworkshop.common.metrics.Counter;
+import com.example.pulsarworkshop.common.metrics.Meter;
+import com.example.pulsarworkshop.common.utils.E2eLatency;
+import com.example.pulsarworkshop.common.utils.KeyStripedWorkerPool;
+import com.example.pulsarworkshop.common.utils.LatencyIntervalReporter;
+import com.example.pulsarworkshop.common.utils.LatencyRecorder;
 
 import org.apache.commons.cli.Option;
 import org.apache.pulsar.client.api.*;
@@ -10,6 +16,20 @@ import org.apache.pulsar.shade.org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 public class PulsarConsumerFullCfg extends PulsarWorkshopCmdApp {
 
     private final static Logger logger = LoggerFactory.getLogger(PulsarConsumerFullCfg.class);
@@ -17,6 +37,47 @@ public class PulsarConsumerFullCfg extends PulsarWorkshopCmdApp {
     private String subsriptionName;
     private SubscriptionType subscriptionType = SubscriptionType.Exclusive;
 
+    // Receive the messages in batches ("consumer.batchReceivePolicy") instead of one by one
+    private boolean batchReceive = false;
+
+    private final static int DEFAULT_WORKER_QUEUE_SIZE = 1000;
+
+    // Number of worker threads handling the messages; 0 means the receive thread handles them
+    private int numWorkers = 0;
+    // Max. number of received messages waiting in each worker's queue
+    private int workerQueueSize = DEFAULT_WORKER_QUEUE_SIZE;
+    // Only used with workers (updated from the worker threads)
+    private final AtomicLong msgProcessed = new AtomicLong();
+    private final AtomicLong msgFailed = new AtomicLong();
+
+    private final static long RECEIVE_POLL_MS = 100;
+
+    // Number of consumers on the subscription, each one with its own blocking receive loop
+    // (thread type: "-threads"); the extra consumers are only used with more than one consumer
+    private int numConsumers = 1;
+    private final List<Consumer<?>> extraConsumers = new ArrayList<>();
+
+    // Messages pushed to a message listener on the client's listener threads, instead of "receive()"
+    private boolean useMessageListener = false;
+    // Only used with a message listener: counted down for each message of the "numMsg" budget
+    private CountDownLatch listenerLatch;
+    private final AtomicLong listenerMsgRecvd = new AtomicLong();
+
+    private final static int DEFAULT_LATENCY_REPORT_INTERVAL_SEC = 10;
+
+    // End-to-end latency of the messages stamped by the producer ("-e2eLatency"), from all the receive modes
+    private final LatencyRecorder e2eLatencyRecorder = metricsRegistry.histogram("e2e.latency");
+    private int latencyReportIntervalSec = DEFAULT_LATENCY_REPORT_INTERVAL_SEC;
+    // Optional HdrHistogram log file with the interval histograms
+    private File histogramLogFile;
+    private LatencyIntervalReporter e2eLatencyReporter;
+
+    private final Meter receiveMeter = metricsRegistry.meter("receive.messages");
+    private final Meter ackMeter = metricsRegistry.meter("ack.messages");
+    private final Counter receiveErrorCounter = metricsRegistry.counter("receive.errors");
+    // Worker failures (negatively acknowledged)
+    private final Counter processErrorCounter = metricsRegistry.counter("process.errors");
+
     private PulsarClient pulsarClient;
     private Consumer<?> pulsarConsumer;
 
@@ -25,6 +86,24 @@ public class PulsarConsumerFullCfg extends PulsarWorkshopCmdApp {
 
         addCommandLineOption(new Option("sbt","subType", true, "Pulsar subscription type."));
         addCommandLineOption(new Option("sbn", "subName", true, "Pulsar subscription name."));
+        addCommandLineOption(new Option("br", "batchReceive", false,
+                "Receive and acknowledge the messages in batches (see \"consumer.batchReceivePolicy\")."));
+        addCommandLineOption(new Option("wkr", "workers", true,
+                "Number of worker threads handling the messages, with the messages of a key always " +
+                "handled by the same worker (default: 0, handled by the receive thread)."));
+        addCommandLineOption(new Option("wqs", "workerQueueSize", true,
+                "(Workers only) Max. number of messages queued per worker (default: " + DEFAULT_WORKER_QUEUE_SIZE + ")."));
+        addCommandLineOption(new Option("ml", "messageListener", false,
+                "Have the messages pushed to a message listener (see \"client.numListenerThreads\") " +
+                "instead of receiving them."));
+        addCommandLineOption(new Option("nc", "numConsumers", true,
+                "Number of consumers on the subscription, each one with its own receive loop thread " +
+                "(default: 1). Not for the Exclusive subscription type."));
+        addCommandLineOption(new Option("lri", "latencyReportInterval", true,
+                "Interval in seconds of logging the end-to-end latency of the messages stamped by the producer " +
+                "(default: " + DEFAULT_LATENCY_REPORT_INTERVAL_SEC + ")."));
+        addCommandLineOption(new Option("hlog", "histogramLogFile", true,
+                "HdrHistogram log file (\".hlog\") to write the end-to-end latency interval histograms to."));
     }
 
     public static void main(String[] args) {
@@ -50,25 +129,104 @@ public class PulsarConsumerFullCfg extends PulsarWorkshopCmdApp {
 	            subscriptionType = SubscriptionType.Exclusive;
 	        }
         }
+
+        // (Optional) Batch receive mode
+        batchReceive = processBooleanInputParam("batchReceive");
+
+        // (Optional) Worker pool
+        if (StringUtils.isNotBlank(processStringInputParam("wkr"))) {
+            numWorkers = processIntegerInputParam("wkr");
+            if (numWorkers < 0) {
+                throw new InvalidParamException("workers", "must be a positive integer (or 0 for no workers)");
+            }
+        }
+        if (StringUtils.isNotBlank(processStringInputParam("wqs"))) {
+            workerQueueSize = processIntegerInputParam("wqs");
+            if (workerQueueSize <= 0) {
+                throw new InvalidParamException("workerQueueSize", "must be a positive integer");
+            }
+        }
+
+        // (Optional) Message listener mode
+        useMessageListener = processBooleanInputParam("messageListener");
+        if (useMessageListener && (batchReceive || (numWorkers > 0))) {
+            throw new InvalidParamException("messageListener",
+                    "can't be combined with \"-batchReceive\" or \"-workers\"");
+        }
+
+        // (Optional) Number of concurrent consumers
+        if (StringUtils.isNotBlank(processStringInputParam("nc"))) {
+            numConsumers = processIntegerInputParam("nc");
+            if (numConsumers <= 0) {
+                throw new InvalidParamException("numConsumers", "must be a positive integer");
+            }
+            if (numConsumers > 1) {
+                if (subscriptionType == SubscriptionType.Exclusive) {
+                    throw new InvalidParamException("numConsumers",
+                            "more than one consumer requires a non-Exclusive subscription type");
+                }
+                if (batchReceive || (numWorkers > 0)) {
+                    throw new InvalidParamException("numConsumers",
+                            "more than one consumer can't be combined with \"-batchReceive\" or \"-workers\"");
+                }
+            }
+        }
+
+        // (Optional) End-to-end latency reporting
+        if (StringUtils.isNotBlank(processStringInputParam("lri"))) {
+            latencyReportIntervalSec = processIntegerInputParam("lri");
+            if (latencyReportIntervalSec <= 0) {
+                throw new InvalidParamException("latencyReportInterval", "must be a positive integer");
+            }
+        }
+        String histogramLogFileStr = processStringInputParam("hlog");
+        if (StringUtils.isNotBlank(histogramLogFileStr)) {
+            histogramLogFile = new File(histogramLogFileStr);
+        }
     }
 
     @Override
     public void runApp() {
         try {
+            int msgRecvd = 0;
+            if (numMsg == -1) {
+                numMsg = Integer.MAX_VALUE;
+            }
+
             pulsarClient = createNativePulsarClient();
+
+            e2eLatencyReporter = new LatencyIntervalReporter(
+                    "End-to-end", e2eLatencyRecorder, latencyReportIntervalSec, histogramLogFile);
+            e2eLatencyReporter.start();
+
+            if (useMessageListener) {
+                consumeWithMessageListener();
+                return;
+            }
+
             pulsarConsumer = createPulsarConsumer(
                     pulsarTopicName,
                     pulsarClient,
                     subsriptionName,
                     subscriptionType);
 
-            int msgRecvd = 0;
-            if (numMsg == -1) {
-                numMsg = Integer.MAX_VALUE;
+            if (numConsumers > 1) {
+                consumeWithConcurrentConsumers();
+                return;
+            }
+            if (numWorkers > 0) {
+                consumeWithWorkers();
+                return;
+            }
+            if (batchReceive) {
+                consumeInBatches();
+                return;
             }
 
+            long startNanos = System.nanoTime();
             while (msgRecvd < numMsg) {
                 Message<?> message = pulsarConsumer.receive();
+                receiveMeter.mark();
                 if (logger.isDebugEnabled()) {
                     logger.debug("({}) Message received and acknowledged: " +
                                     "msg-key={}; msg-properties={}; msg-payload={}",
@@ -77,23 +235,301 @@ public class PulsarConsumerFullCfg extends PulsarWorkshopCmdApp {
                             message.getProperties(),
                             new String(message.getData()));
                 }
+                recordE2eLatency(message);
                 pulsarConsumer.acknowledge(message);
+                ackMeter.mark();
 
                 msgRecvd++;
             }
+            logConsumeSummary(msgRecvd, System.nanoTime() - startNanos);
 
         }
         catch (PulsarClientException pce) {
+            receiveErrorCounter.inc();
             throw new WorkshopRuntimException("Unexpected error when consuming Pulsar messages: " + pce.getMessage());
         }
+        catch (FileNotFoundException fnfe) {
+            throw new WorkshopRuntimException("Can't create the histogram log file: " + fnfe.getMessage());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkshopRuntimException("Interrupted while waiting for the message workers!");
+        }
+    }
+
+    /**
+     * The consumers push the messages to the message listener on the client's listener threads,
+     * and the application thread only waits for the "numMsg" messages to be handled.
+     */
+    private void consumeWithMessageListener() throws PulsarClientException, InterruptedException {
+        // Created before subscribing; the messages can be pushed right away
+        listenerLatch = new CountDownLatch(numMsg);
+
+        long startNanos = System.nanoTime();
+        pulsarConsumer = createPulsarConsumer(
+                pulsarTopicName, pulsarClient, subsriptionName, subscriptionType, this::onMessage);
+        for (int i = 1; i < numConsumers; i++) {
+            extraConsumers.add(createPulsarConsumer(
+                    pulsarTopicName, pulsarClient, subsriptionName, subscriptionType, this::onMessage));
+        }
+
+        listenerLatch.await();
+        logConsumeSummary(Math.min(listenerMsgRecvd.get(), numMsg), System.nanoTime() - startNanos);
+    }
+
+    // Called from the client's listener threads
+    private void onMessage(Consumer<byte[]> consumer, Message<byte[]> message) {
+        // Over the budget: leave the message unacknowledged, it will be redelivered
+        if (listenerMsgRecvd.incrementAndGet() > numMsg) {
+            return;
+        }
+        receiveMeter.mark();
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("({}) Message pushed to the listener and acknowledged: " +
+                            "msg-key={}; msg-properties={}; msg-payload={}",
+                    consumer.getConsumerName(),
+                    message.getKey(),
+                    message.getProperties(),
+                    new String(message.getData()));
+        }
+        recordE2eLatency(message);
+        consumer.acknowledgeAsync(message);
+        ackMeter.mark();
+        listenerLatch.countDown();
+    }
+
+    /**
+     * Runs one blocking receive loop per consumer, each on its own thread of the "-threads" type.
+     * All the consumers share the "numMsg" budget. With virtual threads, a consumer blocked in
+     * "receive()" doesn't hold a platform thread.
+     */
+    private void consumeWithConcurrentConsumers() throws PulsarClientException, InterruptedException {
+        List<Consumer<?>> consumers = new ArrayList<>();
+        consumers.add(pulsarConsumer);
+        for (int i = 1; i < numConsumers; i++) {
+            Consumer<?> consumer = createPulsarConsumer(pulsarTopicName, pulsarClient, subsriptionName, subscriptionType);
+            extraConsumers.add(consumer);
+            consumers.add(consumer);
+        }
+        logger.info("{} consumers subscribed; starting the receive loops on {} threads",
+                numConsumers, threadMode.label);
+
+        AtomicLong msgRecvd = new AtomicLong();
+        AtomicReference<PulsarClientException> loopError = new AtomicReference<>();
+
+        long startNanos = System.nanoTime();
+        ThreadFactory threadFactory = createAppThreadFactory("consumer-loop");
+        List<Thread> loopThreads = new ArrayList<>();
+        for (Consumer<?> consumer : consumers) {
+            Thread loopThread = threadFactory.newThread(() -> {
+                try {
+                    // Poll so that the loop stops once the other consumers have used up the budget
+                    while ((msgRecvd.get() < numMsg) && (loopError.get() == null)) {
+                        Message<?> message = consumer.receive((int) RECEIVE_POLL_MS, TimeUnit.MILLISECONDS);
+                        if (message == null) {
+                            continue;
+                        }
+                        receiveMeter.mark();
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("({}) Message received and acknowledged: " +
+                                            "msg-key={}; msg-properties={}; msg-payload={}",
+                                    consumer.getConsumerName(),
+                                    message.getKey(),
+                                    message.getProperties(),
+                                    new String(message.getData()));
+                        }
+                        recordE2eLatency(message);
+                        consumer.acknowledge(message);
+                        ackMeter.mark();
+                        msgRecvd.incrementAndGet();
+                    }
+                }
+                catch (PulsarClientException pce) {
+                    receiveErrorCounter.inc();
+                    loopError.compareAndSet(null, pce);
+                }
+            });
+            loopThreads.add(loopThread);
+            loopThread.start();
+        }
+        for (Thread loopThread : loopThreads) {
+            loopThread.join();
+        }
+
+        if (loopError.get() != null) {
+            throw loopError.get();
+        }
+        logConsumeSummary(msgRecvd.get(), System.nanoTime() - startNanos);
+    }
+
+    // Only the messages with the producer's send timestamp are measured
+    private void recordE2eLatency(Message<?> message) {
+        long sendTimeMicros = E2eLatency.parseSendTimestamp(message.getProperty(E2eLatency.SEND_TIMESTAMP_PROPERTY));
+        if (sendTimeMicros != E2eLatency.NO_SEND_TIMESTAMP) {
+            e2eLatencyRecorder.recordMicros(E2eLatency.nowEpochMicros() - sendTimeMicros);
+        }
+    }
+
+    // Throughput, and the platform thread and heap footprint (e.g. to compare "-threads" types)
+    private void logConsumeSummary(long msgRecvd, long elapsedNanos) {
+        logger.info("{} message(s) received by {} consumer(s) on {} threads in {} ms ({} msg/s); " +
+                        "peak platform threads: {}; heap used: {} MB",
+                msgRecvd,
+                numConsumers,
+                threadMode.label,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                String.format("%.1f", msgRecvd * 1_000_000_000.0 / Math.max(elapsedNanos, 1)),
+                ManagementFactory.getThreadMXBean().getPeakThreadCount(),
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024));
+    }
+
+    /**
+     * The receive thread only dispatches the messages to the workers, striped by the message
+     * (ordering) key: the messages of a key are handled in order by the same worker, while the
+     * different keys are handled in parallel. Each worker acknowledges its messages individually,
+     * so the acknowledgements are out of order across the workers. A full worker queue blocks
+     * the receive thread, which in turn stops the flow of messages from the broker.
+     */
+    private void consumeWithWorkers() throws PulsarClientException, InterruptedException {
+        long msgDispatched = 0;
+        long startNanos = System.nanoTime();
+
+        try (KeyStripedWorkerPool<Message<?>> workerPool = new KeyStripedWorkerPool<>(
+                createAppThreadFactory("consumer-worker"), numWorkers, workerQueueSize, this::processMessage)) {
+            while (msgDispatched < numMsg) {
+                if (batchReceive) {
+                    for (Message<?> message : pulsarConsumer.batchReceive()) {
+                        receiveMeter.mark();
+                        workerPool.submit(getOrderingKey(message), message);
+                        msgDispatched++;
+                    }
+                }
+                else {
+                    Message<?> message = pulsarConsumer.receive();
+                    receiveMeter.mark();
+                    workerPool.submit(getOrderingKey(message), message);
+                    msgDispatched++;
+                }
+            }
+        }
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+        logger.info("({}) {} message(s) processed by {} worker(s) ({} failed and negatively acknowledged) " +
+                        "in {} ms ({} msg/s)",
+                pulsarConsumer.getConsumerName(),
+                msgProcessed.get(),
+                numWorkers,
+                msgFailed.get(),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                String.format("%.1f", msgProcessed.get() * 1_000_000_000.0 / Math.max(elapsedNanos, 1)));
+    }
+
+    // Same as Key_Shared: the ordering key if present, otherwise the message key (null if none)
+    private static Object getOrderingKey(Message<?> message) {
+        if (message.hasOrderingKey()) {
+            return ByteBuffer.wrap(message.getOrderingKey());
+        }
+        return message.getKey();
+    }
+
+    // Called from the worker threads
+    private void processMessage(Message<?> message) {
+        try {
+            if (logger.isDebugEnabled()) {
+                logger.debug("({}) Message processed by worker: " +
+                                "msg-key={}; msg-properties={}; msg-payload={}",
+                        Thread.currentThread().getName(),
+                        message.getKey(),
+                        message.getProperties(),
+                        new String(message.getData()));
+            }
+            recordE2eLatency(message);
+            pulsarConsumer.acknowledgeAsync(message.getMessageId());
+            ackMeter.mark();
+            msgProcessed.incrementAndGet();
+        }
+        catch (RuntimeException re) {
+            logger.warn("Failed to process a message ({}): {}", message.getMessageId(), re.getMessage());
+            pulsarConsumer.negativeAcknowledge(message);
+            processErrorCounter.inc();
+            msgFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Receives the messages with "batchReceive()" and acknowledges each batch with one call:
+     * - cumulatively on an Exclusive or Failover subscription; for a partitioned topic, the batch
+     *   is acknowledged up to its last message of each partition
+     * - otherwise, by the message ids of the batch
+     * The last batch may take the received message count past "numMsg".
+     */
+    private void consumeInBatches() throws PulsarClientException {
+        boolean cumulativeAck = (subscriptionType == SubscriptionType.Exclusive) ||
+                (subscriptionType == SubscriptionType.Failover);
+        Map<String, MessageId> lastMsgIdPerTopic = new HashMap<>();
+
+        long msgRecvd = 0;
+        long batchRecvd = 0;
+        while (msgRecvd < numMsg) {
+            Messages<?> messages = pulsarConsumer.batchReceive();
+            // The batch receive timeout is reached without any message
+            if (messages.size() == 0) {
+                continue;
+            }
+
+            for (Message<?> message : messages) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("({}) Message received in batch: " +
+                                    "msg-key={}; msg-properties={}; msg-payload={}",
+                            pulsarConsumer.getConsumerName(),
+                            message.getKey(),
+                            message.getProperties(),
+                            new String(message.getData()));
+                }
+                recordE2eLatency(message);
+                if (cumulativeAck) {
+                    lastMsgIdPerTopic.put(message.getTopicName(), message.getMessageId());
+                }
+            }
+
+            if (cumulativeAck) {
+                for (MessageId lastMsgId : lastMsgIdPerTopic.values()) {
+                    pulsarConsumer.acknowledgeCumulative(lastMsgId);
+                }
+                lastMsgIdPerTopic.clear();
+            }
+            else {
+                pulsarConsumer.acknowledge(messages);
+            }
+
+            receiveMeter.mark(messages.size());
+            ackMeter.mark(messages.size());
+            msgRecvd += messages.size();
+            batchRecvd++;
+        }
+
+        logger.info("({}) {} message(s) received and acknowledged in {} batch(es)",
+                pulsarConsumer.getConsumerName(), msgRecvd, batchRecvd);
     }
 
     @Override
     public void termApp() {
         try {
+            if (e2eLatencyReporter != null) {
+                e2eLatencyReporter.close();
+                logger.info("End-to-end latency: {}",
+                        LatencyRecorder.getSummaryStr(e2eLatencyRecorder.getAccumulatedHistogram()));
+            }
+
             if (pulsarConsumer != null) {
+                unregisterClientStats(pulsarConsumer);
                 pulsarConsumer.close();
             }
+            for (Consumer<?> consumer : extraConsumers) {
+                unregisterClientStats(consumer);
+                consumer.close();
+            }
 
             if (pulsarClient != null) {
                 pulsarClient.close();
@@ -1,24 +1,134 @@
 package com.example.pulsarworkshop;
 
+import com.example.pulsarworkshop.common.PulsarExtraCfgConf;
 import com.example.pulsarworkshop.common.PulsarWorkshopCmdApp;
 import com.example.pulsarworkshop.common.exception.InvalidParamException;
 import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+import com.example.pulsarworkshop.common.metrics.Counter;
+import com.example.pulsarworkshop.common.metrics.Meter;
 import com.example.pulsarworkshop.common.utils.CommonUtils;
-import com.example.pulsarworkshop.common.utils.CsvFileLineScanner;
+import com.example.pulsarworkshop.common.utils.CsvColumnExtractor;
+import com.example.pulsarworkshop.common.utils.CsvFileCheckpoint;
+import com.example.pulsarworkshop.common.utils.CsvFileScanner;
+import com.example.pulsarworkshop.common.utils.CsvGenericRecordMapper;
+import com.example.pulsarworkshop.common.utils.CsvJsonRowEncoder;
+import com.example.pulsarworkshop.common.utils.CsvLineView;
+import com.example.pulsarworkshop.common.utils.E2eLatency;
+import com.example.pulsarworkshop.common.utils.LatencyRecorder;
+import com.example.pulsarworkshop.common.utils.MappedCsvFileScanner;
+import com.example.pulsarworkshop.common.utils.PreciseTimeWaiter;
+import com.example.pulsarworkshop.common.utils.StreamingCsvFileScanner;
+import com.example.pulsarworkshop.common.utils.SyntheticWorkload;
+import com.example.pulsarworkshop.common.utils.TokenBucketRateLimiter;
 import org.apache.commons.cli.Option;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.pulsar.client.api.*;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.common.schema.KeyValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PulsarProducerFullCfg extends PulsarWorkshopCmdApp {
 
     private final static Logger logger = LoggerFactory.getLogger(PulsarProducerFullCfg.class);
 
+    // Default max. number of messages that can be in flight (sent but not yet acknowledged)
+    // in the "async" send mode
+    private final static int DEFAULT_MAX_IN_FLIGHT_MSG = 1000;
+
+    // Number of pre-generated payloads (and sampled keys) in the synthetic workload ring
+    private final static int SYNTHETIC_RING_SIZE = 10000;
+    private final static String DEFAULT_PAYLOAD_SIZE_DIST = "fixed:1024";
+    private final static String DEFAULT_KEY_DIST = "none";
+
+    private final static long NO_EVENT_TIME = -1;
+    private final static long NO_SEQUENCE_ID = -1;
+
+    private final static int DEFAULT_CHECKPOINT_INTERVAL_SEC = 10;
+
+    enum WORKLOAD_TYPE {
+        Csv("csv"),
+        Synthetic("synthetic");
+
+        public final String label;
+
+        WORKLOAD_TYPE(String label) {
+            this.label = label;
+        }
+    }
+
+    enum SEND_MODE {
+        Sync("sync"),
+        Async("async");
+
+        public final String label;
+
+        SEND_MODE(String label) {
+            this.label = label;
+        }
+    }
+
+    private WORKLOAD_TYPE workloadType = WORKLOAD_TYPE.Csv;
     private File srcWrkldFile;
+    // (Csv workload only) Name or index of the CSV column used as the message key
+    private String keyColumn;
+    // (Csv workload only) Name or index of the CSV column with the event timestamp. When set,
+    // the rows are replayed with their original inter-arrival gaps, divided by the replay speed.
+    private String replayTimestampColumn;
+    private double replaySpeed = 1.0;
+    // Replay schedule reference: the first row's event time is replayed at "replayStartNanos"
+    private long replayFirstEventMicros;
+    private long replayStartNanos;
+    // How late each message is sent compared with its replay schedule
+    private final LatencyRecorder replayLagRecorder = metricsRegistry.histogram("replay.lag");
+    // Only used for the synthetic workload (see "SyntheticWorkload" for the spec formats)
+    private String payloadSizeDistSpec = DEFAULT_PAYLOAD_SIZE_DIST;
+    private String keyDistSpec = DEFAULT_KEY_DIST;
+
+    private SEND_MODE sendMode = SEND_MODE.Sync;
+    private int maxInFlightMsg = DEFAULT_MAX_IN_FLIGHT_MSG;
+
+    // Number of threads that read, encode and publish the workload file in parallel,
+    // each one working on its own line-aligned byte range of the file
+    private int parallelism = 1;
+    // Number of messages that can still be sent, shared by all threads ("-numMsg")
+    private AtomicLong msgBudget;
+
+    // Only set with "-msgRate"; shared by all threads
+    private TokenBucketRateLimiter rateLimiter;
+    // Send latency, measured from the intended send time (the token time with "-msgRate")
+    private final LatencyRecorder sendLatencyRecorder = metricsRegistry.histogram("send.latency");
+    private final Meter sendMeter = metricsRegistry.meter("send.messages");
+    private final Counter sendErrorCounter = metricsRegistry.counter("send.errors");
+    // Stamp the send time into each message, for the consumer to measure the end-to-end latency
+    private boolean stampSendTime = false;
+
+    // Only used in the "async" send mode
+    // - the semaphore bounds the number of in-flight messages
+    // - the counters are updated from the Pulsar client callback threads
+    private Semaphore inFlightPermits;
+    private final AtomicLong msgAcked = new AtomicLong();
+    private final AtomicLong msgFailed = new AtomicLong();
+    private boolean inFlightDrained = false;
+
+    // (Csv workload only) Progress checkpoint; when set, the CSV row number is used as the
+    // message sequence id so that the broker can drop the rows re-sent after a restart
+    private File checkpointFile;
+    private int checkpointIntervalSec = DEFAULT_CHECKPOINT_INTERVAL_SEC;
+    private CsvFileCheckpoint csvCheckpoint;
+    private ScheduledExecutorService checkpointScheduler;
+
+    // Only set when "schema.type" is set in the extra config file; otherwise
+    // the CSV rows are sent as JSON strings (byte[])
+    private PulsarExtraCfgConf pulsarExtraCfgConf;
 
     private PulsarClient pulsarClient;
     private Producer pulsarProducer;
@@ -26,7 +136,37 @@ public class PulsarProducerFullCfg extends PulsarWorkshopCmdApp {
     public PulsarProducerFullCfg(String[] inputParams) {
         super(inputParams);
 
-        addCommandLineOption(new Option("wrk","srcWrkldFile", true, "Data source workload file."));
+        addCommandLineOption(new Option("wl","workload", true,
+                "Workload type: \"csv\" (default, from the data source workload file) or \"synthetic\"."));
+        addCommandLineOption(new Option("wrk","srcWrkldFile", true,
+                "Data source workload file (\".gz\", \".zst\" and \".lz4\" files are decompressed on the fly)."));
+        addCommandLineOption(new Option("kc","keyColumn", true,
+                "(Csv workload only) Name (or 0 based index) of the CSV column used as the message key."));
+        addCommandLineOption(new Option("rtc","replayTimestampColumn", true,
+                "(Csv workload only) Name (or 0 based index) of the CSV column with the event timestamp. " +
+                "When set, the rows are sent following their event timestamps (the file must be sorted by time)."));
+        addCommandLineOption(new Option("rs","replaySpeed", true,
+                "(Timestamp replay only) Replay speed factor, e.g. 2 for twice the original speed (default: 1)."));
+        addCommandLineOption(new Option("psd","payloadSizeDist", true,
+                "(Synthetic workload only) Payload size distribution: \"fixed:<size>\" (default: " + DEFAULT_PAYLOAD_SIZE_DIST +
+                "), \"uniform:<min>-<max>\", or \"histogram:<size>=<weight>,...\"."));
+        addCommandLineOption(new Option("kd","keyDist", true,
+                "(Synthetic workload only) Message key distribution: \"none\" (default), " +
+                "\"sequential:<num_keys>\", \"uniform:<num_keys>\", or \"zipf:<num_keys>[:<exponent>]\"."));
+        addCommandLineOption(new Option("sm","sendMode", true,
+                "Message send mode: \"sync\" (default) or \"async\"."));
+        addCommandLineOption(new Option("mif","maxInFlight", true,
+                "(Async send mode only) Max. number of in-flight messages (default: " + DEFAULT_MAX_IN_FLIGHT_MSG + ")."));
+        addCommandLineOption(new Option("par","parallelism", true,
+                "Number of threads reading and publishing the workload file in parallel (default: 1)."));
+        addCommandLineOption(new Option("ckf","checkpointFile", true,
+                "(Csv workload only) File to save the publishing progress in, and to resume from after a restart. " +
+                "Requires \"producer.producerName\" and topic deduplication to be enabled."));
+        addCommandLineOption(new Option("cki","checkpointInterval", true,
+                "(Checkpoint only) Checkpoint interval in seconds (default: " + DEFAULT_CHECKPOINT_INTERVAL_SEC + ")."));
+        addCommandLineOption(new Option("e2e","e2eLatency", false,
+                "Stamp the send time into each message (\"" + E2eLatency.SEND_TIMESTAMP_PROPERTY + "\" property) " +
+                "for the consumer to measure the end-to-end latency."));
     }
 
     public static void main(String[] args) {
@@ -39,9 +179,106 @@ public class PulsarProducerFullCfg extends PulsarWorkshopCmdApp {
 
     @Override
     public void processInputParams() throws InvalidParamException {
-        // (Required) CLI option for data source workload file
+        // (Optional) CLI option for the workload type
+        String workloadStr = processStringInputParam("wl");
+        if (!StringUtils.isBlank(workloadStr)) {
+            if (StringUtils.equalsIgnoreCase(workloadStr, WORKLOAD_TYPE.Synthetic.label)) {
+                workloadType = WORKLOAD_TYPE.Synthetic;
+            }
+            else if (!StringUtils.equalsIgnoreCase(workloadStr, WORKLOAD_TYPE.Csv.label)) {
+                throw new InvalidParamException("workload",
+                        "must be either \"" + WORKLOAD_TYPE.Csv.label + "\" or \"" + WORKLOAD_TYPE.Synthetic.label + "\"");
+            }
+        }
+
+        // (Required for the csv workload) CLI option for data source workload file
         srcWrkldFile = processFileInputParam("wrk");
-        
+        if ((workloadType == WORKLOAD_TYPE.Csv) && (srcWrkldFile == null)) {
+            throw new InvalidParamException("srcWrkldFile", "must be set for the csv workload");
+        }
+
+        // (Optional) CLI option for the message key column
+        keyColumn = processStringInputParam("kc");
+        if (StringUtils.isNotBlank(keyColumn) && (workloadType != WORKLOAD_TYPE.Csv)) {
+            throw new InvalidParamException("keyColumn", "only applies to the csv workload");
+        }
+
+        // (Optional) CLI options for the timestamp replay
+        replayTimestampColumn = processStringInputParam("rtc");
+        if (StringUtils.isNotBlank(replayTimestampColumn)) {
+            if (workloadType != WORKLOAD_TYPE.Csv) {
+                throw new InvalidParamException("replayTimestampColumn", "only applies to the csv workload");
+            }
+            if (msgRate > 0) {
+                throw new InvalidParamException("replayTimestampColumn", "can't be used together with \"msgRate\"");
+            }
+        }
+        String replaySpeedStr = processStringInputParam("rs");
+        if (StringUtils.isNotBlank(replaySpeedStr)) {
+            replaySpeed = NumberUtils.toDouble(replaySpeedStr, -1);
+            if (replaySpeed <= 0) {
+                throw new InvalidParamException("replaySpeed", "must be a positive number");
+            }
+        }
+
+        // (Optional) CLI options for the synthetic workload distributions
+        payloadSizeDistSpec = StringUtils.defaultIfBlank(processStringInputParam("psd"), DEFAULT_PAYLOAD_SIZE_DIST);
+        keyDistSpec = StringUtils.defaultIfBlank(processStringInputParam("kd"), DEFAULT_KEY_DIST);
+
+        // (Optional) CLI option for the message send mode
+        String sendModeStr = processStringInputParam("sm");
+        if (!StringUtils.isBlank(sendModeStr)) {
+            if (StringUtils.equalsIgnoreCase(sendModeStr, SEND_MODE.Async.label)) {
+                sendMode = SEND_MODE.Async;
+            }
+            else if (!StringUtils.equalsIgnoreCase(sendModeStr, SEND_MODE.Sync.label)) {
+                throw new InvalidParamException("sendMode",
+                        "must be either \"" + SEND_MODE.Sync.label + "\" or \"" + SEND_MODE.Async.label + "\"");
+            }
+        }
+
+        // (Optional) CLI option for the max. number of in-flight messages
+        if (StringUtils.isNotBlank(processStringInputParam("mif"))) {
+            maxInFlightMsg = processIntegerInputParam("mif");
+            if (maxInFlightMsg <= 0) {
+                throw new InvalidParamException("maxInFlight", "must be a positive integer");
+            }
+        }
+
+        // (Optional) CLI option for the number of producing threads
+        if (StringUtils.isNotBlank(processStringInputParam("par"))) {
+            parallelism = processIntegerInputParam("par");
+            if (parallelism <= 0) {
+                throw new InvalidParamException("parallelism", "must be a positive integer");
+            }
+            // A compressed file can't be split into byte ranges
+            if ((parallelism > 1) && (workloadType == WORKLOAD_TYPE.Csv) && CsvFileScanner.isCompressed(srcWrkldFile)) {
+                throw new InvalidParamException("parallelism",
+                        "must be 1 for a compressed workload file (decompress the file to publish it in parallel)");
+            }
+        }
+
+        // (Optional) CLI options for the progress checkpoint
+        String checkpointFileStr = processStringInputParam("ckf");
+        if (StringUtils.isNotBlank(checkpointFileStr)) {
+            if (workloadType != WORKLOAD_TYPE.Csv) {
+                throw new InvalidParamException("checkpointFile", "only applies to the csv workload");
+            }
+            // The sequence ids must increase over the (single) producer, in the file order
+            if (parallelism > 1) {
+                throw new InvalidParamException("checkpointFile", "can't be used with \"-parallelism\" > 1");
+            }
+            checkpointFile = new File(checkpointFileStr);
+        }
+        if (StringUtils.isNotBlank(processStringInputParam("cki"))) {
+            checkpointIntervalSec = processIntegerInputParam("cki");
+            if (checkpointIntervalSec <= 0) {
+                throw new InvalidParamException("checkpointInterval", "must be a positive integer");
+            }
+        }
+
+        // (Optional) CLI option for the end-to-end latency send timestamp
+        stampSendTime = processBooleanInputParam("e2eLatency");
     }
 
     @Override
@@ -49,50 +286,498 @@ public class PulsarProducerFullCfg extends PulsarWorkshopCmdApp {
         try {
             pulsarClient = createNativePulsarClient();
             pulsarProducer = createPulsarProducer(pulsarTopicName, pulsarClient);
+            pulsarExtraCfgConf = getPulsarExtraCfgConf();
 
-            // TODO: right now the message is sent as byte[].
-            //       add support for more complex types likes 'avro' or 'json' in the future.
-            assert (srcWrkldFile != null);
-
-            CsvFileLineScanner csvFileLineScanner = new CsvFileLineScanner(srcWrkldFile);
-            TypedMessageBuilder messageBuilder = pulsarProducer.newMessage();
+            if (sendMode == SEND_MODE.Async) {
+                inFlightPermits = new Semaphore(maxInFlightMsg);
+            }
 
-            boolean isTitleLine = true;
-            String titleLine = "";
-            int msgSent = 0;
             if (numMsg == -1) {
                 numMsg = Integer.MAX_VALUE;
             }
+            msgBudget = new AtomicLong(numMsg);
+            rateLimiter = createRateLimiter();
 
-            while (csvFileLineScanner.hasNextLine()) {
-                String csvLine = csvFileLineScanner.getNextLine();
-                // Skip the first line which is a title line
-                if (!isTitleLine) {
-                    String msgPayload = CommonUtils.getJsonStrForCsv(titleLine, csvLine);
+            if (checkpointFile != null) {
+                startCheckpointing();
+            }
 
-                    if (msgSent < numMsg) {
-                        MessageId messageId = messageBuilder
-                                .value(msgPayload.getBytes(StandardCharsets.UTF_8))
-                                .send();
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("Published a message: {}", messageId);
-                        }
+            List<WorkloadProducer> workloadProducers = (workloadType == WORKLOAD_TYPE.Synthetic)
+                    ? createSyntheticProducers()
+                    : createCsvRangeProducers();
+            if (workloadProducers.isEmpty()) {
+                return;
+            }
 
-                        msgSent++;
-                    } else {
-                        break;
+            long startNanos = System.nanoTime();
+            replayStartNanos = startNanos;
+            if (parallelism == 1) {
+                workloadProducers.get(0).produce();
+            }
+            else {
+                ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+                try {
+                    for (Future<Long> future : executorService.invokeAll(workloadProducers)) {
+                        future.get();
                     }
-                } else {
-                    isTitleLine = false;
-                    titleLine = csvLine;
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof PulsarClientException) {
+                        throw (PulsarClientException) cause;
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new WorkshopRuntimException("Unexpected error when producing Pulsar messages: " + cause);
+                } finally {
+                    executorService.shutdownNow();
                 }
             }
+            // The summary only counts the acknowledged messages
+            drainInFlightMessages();
+            logProducerSummary(workloadProducers, System.nanoTime() - startNanos);
+            if (StringUtils.isNotBlank(replayTimestampColumn)) {
+                logger.info("Replay schedule lag: {}",
+                        LatencyRecorder.getSummaryStr(replayLagRecorder.getAccumulatedHistogram()));
+            }
 
         } catch (PulsarClientException pce) {
         	pce.printStackTrace();
             throw new WorkshopRuntimException("Unexpected error when producing Pulsar messages: " + pce.getMessage());
         } catch (IOException ioException) {
             throw new WorkshopRuntimException("Failed to read from the workload data source file: " + ioException.getMessage());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkshopRuntimException("Interrupted while waiting for in-flight messages to complete!");
+        }
+    }
+
+    private List<WorkloadProducer> createCsvRangeProducers() throws IOException {
+        List<WorkloadProducer> rangeProducers = new ArrayList<>();
+
+        // The first line is a title line
+        String titleLine;
+        long dataStartPos;
+        CsvFileScanner titleLineScanner = CsvFileScanner.open(srcWrkldFile);
+        try {
+            if (!titleLineScanner.hasNextLine()) {
+                logger.warn("The workload data source file is empty: {}", srcWrkldFile);
+                return rangeProducers;
+            }
+            titleLine = titleLineScanner.getNextLine();
+            dataStartPos = titleLineScanner.getPosition();
+        } finally {
+            titleLineScanner.close();
+        }
+
+        // Resume after the last acknowledged row of the previous run
+        long startLineNumber = 0;
+        if ((csvCheckpoint != null) && csvCheckpoint.isResuming()) {
+            dataStartPos = csvCheckpoint.getPosition();
+            startLineNumber = csvCheckpoint.getLineNumber();
+            logger.info("Resuming from row {} (byte position {}) of the workload file, as per checkpoint file: {}",
+                    startLineNumber, dataStartPos, checkpointFile);
+        }
+
+        // The replay schedule starts from the event time of the first (remaining) data row
+        if (StringUtils.isNotBlank(replayTimestampColumn)) {
+            CsvFileScanner firstRowScanner = openCsvFileScanner(dataStartPos, Long.MAX_VALUE);
+            try {
+                if (!firstRowScanner.hasNextLine()) {
+                    logger.info("No data row to publish in the workload file: {}", srcWrkldFile);
+                    return rangeProducers;
+                }
+                CsvColumnExtractor timestampExtractor = new CsvColumnExtractor(titleLine, replayTimestampColumn);
+                replayFirstEventMicros = CommonUtils.parseTimestampToEpochMicros(
+                        timestampExtractor.extract(firstRowScanner.nextLineView()));
+            } finally {
+                firstRowScanner.close();
+            }
+        }
+
+        // A compressed file is read (and decompressed) as a whole by one producer
+        if (CsvFileScanner.isCompressed(srcWrkldFile)) {
+            rangeProducers.add(new CsvRangeProducer(0, titleLine, dataStartPos, Long.MAX_VALUE, startLineNumber));
+            return rangeProducers;
+        }
+
+        // Only the first range knows its row numbers; more ranges means no checkpoint
+        long[] rangeBoundaries =
+                MappedCsvFileScanner.getLineAlignedRanges(srcWrkldFile, dataStartPos, parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            rangeProducers.add(new CsvRangeProducer(i, titleLine, rangeBoundaries[i], rangeBoundaries[i + 1],
+                    (i == 0) ? startLineNumber : NO_SEQUENCE_ID));
+        }
+        return rangeProducers;
+    }
+
+    // Scans the workload file lines in the byte range; a compressed file is skipped through up to "startPos"
+    private CsvFileScanner openCsvFileScanner(long startPos, long endPos) throws IOException {
+        if (!CsvFileScanner.isCompressed(srcWrkldFile)) {
+            return new MappedCsvFileScanner(srcWrkldFile, startPos, endPos);
+        }
+
+        StreamingCsvFileScanner streamingScanner = new StreamingCsvFileScanner(srcWrkldFile);
+        streamingScanner.skipTo(startPos);
+        return streamingScanner;
+    }
+
+    private void startCheckpointing() throws IOException {
+        if (StringUtils.isBlank((String) pulsarExtraCfgConf.getProducerConfMapTgt().get("producerName"))) {
+            throw new InvalidParamException("checkpointFile",
+                    "requires a fixed producer name (\"producer.producerName\") for the message deduplication");
+        }
+        logger.info("Resuming from a checkpoint only avoids duplicates when the deduplication " +
+                "is enabled for the topic (e.g. \"pulsar-admin namespaces set-deduplication --enable\")");
+
+        csvCheckpoint = new CsvFileCheckpoint(checkpointFile, srcWrkldFile);
+
+        checkpointScheduler = Executors.newSingleThreadScheduledExecutor();
+        checkpointScheduler.scheduleWithFixedDelay(
+                this::saveCheckpoint, checkpointIntervalSec, checkpointIntervalSec, TimeUnit.SECONDS);
+    }
+
+    private void saveCheckpoint() {
+        try {
+            csvCheckpoint.save();
+        } catch (IOException ioe) {
+            logger.warn("Failed to save the checkpoint file \"{}\": {}", checkpointFile, ioe.getMessage());
+        }
+    }
+
+    private List<WorkloadProducer> createSyntheticProducers() {
+        if (pulsarExtraCfgConf.getValueGenericSchema() != null) {
+            throw new InvalidParamException("workload",
+                    "the synthetic workload only supports the byte[] schema (\"schema.type\" not set)");
+        }
+
+        SyntheticWorkload syntheticWorkload = new SyntheticWorkload(
+                payloadSizeDistSpec, keyDistSpec, SYNTHETIC_RING_SIZE, System.nanoTime());
+        logger.info("Pre-generated {} synthetic payload(s) (size distribution: {}; key distribution: {})",
+                syntheticWorkload.getPayloadRingSize(), payloadSizeDistSpec, keyDistSpec);
+
+        List<WorkloadProducer> syntheticProducers = new ArrayList<>();
+        for (int i = 0; i < parallelism; i++) {
+            syntheticProducers.add(new SyntheticProducer(i, syntheticWorkload));
+        }
+        return syntheticProducers;
+    }
+
+    private void logProducerSummary(List<WorkloadProducer> workloadProducers, long totalElapsedNanos) {
+        long totalMsgSent = 0;
+        for (WorkloadProducer workloadProducer : workloadProducers) {
+            logger.info("[thread-{}] {} message(s) sent in {} ms ({} msg/s)",
+                    workloadProducer.threadId,
+                    workloadProducer.msgSent.get(),
+                    TimeUnit.NANOSECONDS.toMillis(workloadProducer.elapsedNanos),
+                    getThroughputStr(workloadProducer.msgSent.get(), workloadProducer.elapsedNanos));
+            totalMsgSent += workloadProducer.msgSent.get();
+        }
+        logger.info("Total: {} message(s) sent by {} thread(s) in {} ms ({} msg/s)",
+                totalMsgSent,
+                workloadProducers.size(),
+                TimeUnit.NANOSECONDS.toMillis(totalElapsedNanos),
+                getThroughputStr(totalMsgSent, totalElapsedNanos));
+    }
+
+    private static String getThroughputStr(long msgCnt, long elapsedNanos) {
+        double msgPerSec = (elapsedNanos > 0) ? (msgCnt * 1_000_000_000.0 / elapsedNanos) : 0;
+        return String.format("%.1f", msgPerSec);
+    }
+
+    /**
+     * A producing thread. All the producing threads share the same Pulsar producer,
+     * the global message budget and the rate limiter.
+     */
+    private abstract class WorkloadProducer implements Callable<Long> {
+        protected final int threadId;
+
+        private final TypedMessageBuilder messageBuilder = pulsarProducer.newMessage();
+        // The builder can't clear a key once set
+        private boolean messageBuilderHasKey = false;
+        // Acknowledged messages; in async mode, counted by the send callbacks
+        private final AtomicLong msgSent = new AtomicLong();
+        private long elapsedNanos = 0;
+
+        WorkloadProducer(int threadId) {
+            this.threadId = threadId;
+        }
+
+        abstract void produceMessages() throws PulsarClientException, IOException, InterruptedException;
+
+        long produce() throws PulsarClientException, IOException, InterruptedException {
+            long startNanos = System.nanoTime();
+            try {
+                produceMessages();
+            } finally {
+                elapsedNanos = System.nanoTime() - startNanos;
+            }
+            return msgSent.get();
+        }
+
+        // Waits for the rate limiter (if any), then sends the message in the configured send mode
+        protected void sendMessage(Object msgPayload, String msgKey)
+                throws PulsarClientException, InterruptedException {
+            long intendedNanos = (rateLimiter != null) ? rateLimiter.acquire() : System.nanoTime();
+            sendMessage(msgPayload, msgKey, NO_EVENT_TIME, intendedNanos, NO_SEQUENCE_ID, 0);
+        }
+
+        // Sends the message in the configured send mode; the send latency is measured from "intendedNanos".
+        // With a sequence id (the CSV row number), the acknowledgement moves the checkpoint to "nextLinePos".
+        protected void sendMessage(Object msgPayload,
+                                   String msgKey,
+                                   long eventTimeMillis,
+                                   long intendedNanos,
+                                   long sequenceId,
+                                   long nextLinePos)
+                throws PulsarClientException, InterruptedException {
+            if (sendMode == SEND_MODE.Async) {
+                sendMessageAsync(msgPayload, msgKey, eventTimeMillis, intendedNanos, sequenceId, nextLinePos, msgSent);
+            }
+            else {
+                // The message properties are appended, not replaced, so a stamped message needs its own builder.
+                // So does a message without key once the shared builder carries the key of a previous row.
+                boolean newBuilder = stampSendTime || ((msgKey == null) && messageBuilderHasKey);
+                TypedMessageBuilder messageBuilder = newBuilder ? pulsarProducer.newMessage() : this.messageBuilder;
+                if (msgKey != null) {
+                    messageBuilder.key(msgKey);
+                    messageBuilderHasKey |= !newBuilder;
+                }
+                if (eventTimeMillis != NO_EVENT_TIME) {
+                    messageBuilder.eventTime(eventTimeMillis);
+                }
+                if (sequenceId != NO_SEQUENCE_ID) {
+                    messageBuilder.sequenceId(sequenceId);
+                }
+                if (stampSendTime) {
+                    messageBuilder.property(E2eLatency.SEND_TIMESTAMP_PROPERTY, E2eLatency.getSendTimestamp(intendedNanos));
+                }
+                MessageId messageId;
+                try {
+                    messageId = messageBuilder
+                            .value(msgPayload)
+                            .send();
+                }
+                catch (PulsarClientException pce) {
+                    sendErrorCounter.inc();
+                    throw pce;
+                }
+                sendLatencyRecorder.recordSince(intendedNanos);
+                sendMeter.mark();
+                msgSent.incrementAndGet();
+                if ((csvCheckpoint != null) && (sequenceId != NO_SEQUENCE_ID)) {
+                    csvCheckpoint.markAcked(sequenceId, nextLinePos);
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Published a message: {}", messageId);
+                }
+            }
+        }
+
+        @Override
+        public Long call() throws Exception {
+            return produce();
+        }
+    }
+
+    /**
+     * Publishes the CSV rows in one line-aligned byte range of the workload file (the whole file
+     * for a compressed file).
+     */
+    private class CsvRangeProducer extends WorkloadProducer {
+        private final String titleLine;
+        private final long startPos;
+        private final long endPos;
+        // Row number of the first row in the range; NO_SEQUENCE_ID when unknown
+        private final long startLineNumber;
+
+        CsvRangeProducer(int threadId, String titleLine, long startPos, long endPos, long startLineNumber) {
+            super(threadId);
+            this.titleLine = titleLine;
+            this.startPos = startPos;
+            this.endPos = endPos;
+            this.startLineNumber = startLineNumber;
+        }
+
+        @Override
+        void produceMessages() throws PulsarClientException, IOException, InterruptedException {
+            // byte[] schema: CSV row -> JSON string
+            // 'avro'/'json' schema: CSV row -> generic record (key record too for a KeyValue schema)
+            CsvJsonRowEncoder rowEncoder = null;
+            CsvGenericRecordMapper keyRecordMapper = null;
+            CsvGenericRecordMapper valueRecordMapper = null;
+            if (pulsarExtraCfgConf.getValueGenericSchema() == null) {
+                rowEncoder = new CsvJsonRowEncoder(titleLine);
+            } else {
+                valueRecordMapper = new CsvGenericRecordMapper(titleLine,
+                        pulsarExtraCfgConf.getValueAvroSchema(), pulsarExtraCfgConf.getValueGenericSchema());
+                if (pulsarExtraCfgConf.getKeyGenericSchema() != null) {
+                    keyRecordMapper = new CsvGenericRecordMapper(titleLine,
+                            pulsarExtraCfgConf.getKeyAvroSchema(), pulsarExtraCfgConf.getKeyGenericSchema());
+                }
+            }
+
+            CsvColumnExtractor keyExtractor = null;
+            if (StringUtils.isNotBlank(keyColumn)) {
+                // With a KeyValue schema, the message key is already the key record
+                if (keyRecordMapper != null) {
+                    throw new InvalidParamException("keyColumn",
+                            "can't be used with a KeyValue schema (\"schema.key.definition\" is set)");
+                }
+                keyExtractor = new CsvColumnExtractor(titleLine, keyColumn);
+            }
+            CsvColumnExtractor timestampExtractor = null;
+            if (StringUtils.isNotBlank(replayTimestampColumn)) {
+                timestampExtractor = new CsvColumnExtractor(titleLine, replayTimestampColumn);
+            }
+
+            // The row number is only used as the sequence id with a checkpoint
+            long lineNumber = (csvCheckpoint != null) ? startLineNumber : NO_SEQUENCE_ID;
+
+            CsvFileScanner csvFileScanner = openCsvFileScanner(startPos, endPos);
+            try {
+                while (csvFileScanner.hasNextLine() && (msgBudget.getAndDecrement() > 0)) {
+                    CsvLineView csvLine = csvFileScanner.nextLineView();
+                    Object msgPayload;
+                    if (rowEncoder != null) {
+                        rowEncoder.encode(csvLine);
+                        msgPayload = rowEncoder.toBytes();
+                    } else if (keyRecordMapper == null) {
+                        msgPayload = valueRecordMapper.toRecord(csvLine);
+                    } else {
+                        GenericRecord keyRecord = keyRecordMapper.toRecord(csvLine);
+                        msgPayload = new KeyValue<>(keyRecord, valueRecordMapper.toRecord(csvLine));
+                    }
+
+                    String msgKey = (keyExtractor != null) ? keyExtractor.extract(csvLine) : null;
+
+                    if (timestampExtractor != null) {
+                        // Wait for the replay schedule of the row's event time
+                        String timestampStr = timestampExtractor.extract(csvLine);
+                        long eventMicros = CommonUtils.parseTimestampToEpochMicros(timestampStr);
+                        long scheduledNanos = replayStartNanos +
+                                (long) ((eventMicros - replayFirstEventMicros) * 1_000 / replaySpeed);
+                        PreciseTimeWaiter.waitUntil(scheduledNanos);
+                        replayLagRecorder.recordSince(scheduledNanos);
+
+                        // Pulsar only accepts a positive event time
+                        long eventTimeMillis = eventMicros / 1_000;
+                        if (eventTimeMillis <= 0) {
+                            logger.warn("Non-positive event time \"{}\" in the CSV row ending at byte position {}; " +
+                                    "the message is published without event time", timestampStr, csvFileScanner.getPosition());
+                            eventTimeMillis = NO_EVENT_TIME;
+                        }
+
+                        sendMessage(msgPayload, msgKey, eventTimeMillis, scheduledNanos,
+                                lineNumber, csvFileScanner.getPosition());
+                    } else {
+                        long intendedNanos = (rateLimiter != null) ? rateLimiter.acquire() : System.nanoTime();
+                        sendMessage(msgPayload, msgKey, NO_EVENT_TIME, intendedNanos,
+                                lineNumber, csvFileScanner.getPosition());
+                    }
+
+                    if (lineNumber != NO_SEQUENCE_ID) {
+                        lineNumber++;
+                    }
+                }
+            } finally {
+                csvFileScanner.close();
+            }
+        }
+    }
+
+    /**
+     * Cycles through the pre-generated synthetic payloads and keys. The threads interleave
+     * over the ring (thread "i" sends the ring items i, i+N, i+2N, ...).
+     */
+    private class SyntheticProducer extends WorkloadProducer {
+        private final SyntheticWorkload syntheticWorkload;
+
+        SyntheticProducer(int threadId, SyntheticWorkload syntheticWorkload) {
+            super(threadId);
+            this.syntheticWorkload = syntheticWorkload;
+        }
+
+        @Override
+        void produceMessages() throws PulsarClientException, InterruptedException {
+            long msgIdx = threadId;
+            while (msgBudget.getAndDecrement() > 0) {
+                sendMessage(syntheticWorkload.getPayload(msgIdx), syntheticWorkload.getKey(msgIdx));
+                msgIdx += parallelism;
+            }
+        }
+    }
+
+    /**
+     * Publish a message without waiting for the broker acknowledgement. The call only blocks
+     * when the number of in-flight messages reaches the "maxInFlight" limit. A failed send
+     * is counted and logged, but doesn't stop the application. "msgSent" counts the
+     * acknowledged messages of the calling producing thread.
+     */
+    @SuppressWarnings("unchecked")
+    private void sendMessageAsync(Object msgPayload,
+                                  String msgKey,
+                                  long eventTimeMillis,
+                                  long intendedNanos,
+                                  long sequenceId,
+                                  long nextLinePos,
+                                  AtomicLong msgSent)
+            throws InterruptedException {
+        inFlightPermits.acquire();
+
+        // A new message builder is needed per message because the pending message keeps
+        // a reference to the builder's metadata until it is acknowledged.
+        TypedMessageBuilder messageBuilder = pulsarProducer.newMessage();
+        if (msgKey != null) {
+            messageBuilder.key(msgKey);
+        }
+        if (eventTimeMillis != NO_EVENT_TIME) {
+            messageBuilder.eventTime(eventTimeMillis);
+        }
+        if (sequenceId != NO_SEQUENCE_ID) {
+            messageBuilder.sequenceId(sequenceId);
+        }
+        if (stampSendTime) {
+            messageBuilder.property(E2eLatency.SEND_TIMESTAMP_PROPERTY, E2eLatency.getSendTimestamp(intendedNanos));
+        }
+        messageBuilder
+                .value(msgPayload)
+                .sendAsync()
+                .whenComplete((messageId, throwable) -> {
+                    if (throwable == null) {
+                        sendLatencyRecorder.recordSince(intendedNanos);
+                        sendMeter.mark();
+                        msgAcked.incrementAndGet();
+                        msgSent.incrementAndGet();
+                        // The producer completes the sends in order
+                        if ((csvCheckpoint != null) && (sequenceId != NO_SEQUENCE_ID)) {
+                            csvCheckpoint.markAcked(sequenceId, nextLinePos);
+                        }
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Published a message: {}", messageId);
+                        }
+                    }
+                    else {
+                        sendErrorCounter.inc();
+                        msgFailed.incrementAndGet();
+                        if (csvCheckpoint != null) {
+                            csvCheckpoint.markFailed();
+                        }
+                        logger.warn("Failed to publish a message: {}", ((Throwable)throwable).getMessage());
+                    }
+                    inFlightPermits.release();
+                });
+    }
+
+    // Flush the producer and wait for all in-flight messages to be either acknowledged or failed
+    private void drainInFlightMessages() throws PulsarClientException {
+        if ((inFlightPermits != null) && !inFlightDrained) {
+            inFlightDrained = true;
+            pulsarProducer.flush();
+            inFlightPermits.acquireUninterruptibly(maxInFlightMsg);
+            inFlightPermits.release(maxInFlightMsg);
+
+            logger.info("Async send completed: {} message(s) acknowledged, {} message(s) failed",
+                    msgAcked.get(), msgFailed.get());
         }
     }
 
@@ -100,9 +785,20 @@ public class PulsarProducerFullCfg extends PulsarWorkshopCmdApp {
     public void termApp() {
         try {
             if (pulsarProducer != null) {
+                drainInFlightMessages();
+                logger.info("Send latency: {}",
+                        LatencyRecorder.getSummaryStr(sendLatencyRecorder.getAccumulatedHistogram()));
+                unregisterClientStats(pulsarProducer);
                 pulsarProducer.close();
             }
 
+            // The last checkpoint is saved once all the in-flight messages are completed
+            if (checkpointScheduler != null) {
+                checkpointScheduler.shutdownNow();
+                saveCheckpoint();
+                logger.info("Checkpoint saved: {} row(s) of the workload file acknowledged", csvCheckpoint.getLineNumber());
+            }
+
             if (pulsarClient != null) {
                 pulsarClient.close();
             }
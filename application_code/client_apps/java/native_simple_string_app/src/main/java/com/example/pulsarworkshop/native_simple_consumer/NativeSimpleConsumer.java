@@ -36,6 +36,7 @@ public class NativeSimpleConsumer extends PulsarWorkshopCmdApp {
         } catch (PulsarClientException pce) {
             // Close the consumer and the client when finished
             try {
+                unregisterClientStats(pulsarConsumer);
                 pulsarConsumer.close();
                 pulsarClient.close();
             } catch (PulsarClientException e) {
@@ -71,6 +72,7 @@ public class NativeSimpleConsumer extends PulsarWorkshopCmdApp {
     public void termApp() {
         try {
             if (pulsarConsumer != null) {
+                unregisterClientStats(pulsarConsumer);
                 pulsarConsumer.close();
             }
 
@@ -28,6 +28,7 @@ public class NativeSimpleProducer extends PulsarWorkshopCmdApp {
             pulsarProducer.send(message);
 
             // Close the producer and the Pulsar client when done
+            unregisterClientStats(pulsarProducer);
             pulsarProducer.close();
             pulsarClient.close();
 
@@ -56,6 +57,7 @@ public class NativeSimpleProducer extends PulsarWorkshopCmdApp {
     public void termApp() {
         try {
             if (pulsarProducer != null) {
+                unregisterClientStats(pulsarProducer);
                 pulsarProducer.close();
             }
 
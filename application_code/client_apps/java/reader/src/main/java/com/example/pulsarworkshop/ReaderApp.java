@@ -3,98 +3,348 @@ package com.example.pulsarworkshop;
 import com.example.pulsarworkshop.common.PulsarWorkshopCmdApp;
 import com.example.pulsarworkshop.common.exception.InvalidParamException;
 import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+import com.example.pulsarworkshop.common.metrics.Meter;
+import com.example.pulsarworkshop.common.utils.CommonUtils;
+import com.example.pulsarworkshop.common.utils.MessageExportWriter;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.Option;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.pulsar.client.api.*;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.apache.pulsar.common.naming.TopicName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Exports a range of a (partitioned) topic to a local file, for offline analysis.
+ *
+ * One reader per partition reads its partition in parallel with the others:
+ * - from the earliest message, a start message id ("-startMessageId") or a start publish time
+ *   ("-startTime", with "seek()")
+ * - up to an end message id ("-endMessageId") or an end publish time ("-endTime"), both
+ *   inclusive; without an end bound, up to the last message when the reader caught up
+ * - for at most "-numMsg" messages over all the partitions (-1: no limit)
+ *
+ * The messages are written as NDJSON or length-prefixed binary records (see
+ * {@link MessageExportWriter}).
+ */
 public class ReaderApp extends PulsarWorkshopCmdApp {
 
+    private final static Logger logger = LoggerFactory.getLogger(ReaderApp.class);
+
+    private final static String EARLIEST_MESSAGE_ID = "earliest";
+    private final static int READ_TIMEOUT_SEC = 5;
+
+    // Message ids by partition index (-1 for a non-partitioned topic)
+    private final Map<Integer, MessageId> startMessageIds = new HashMap<>();
+    private final Map<Integer, MessageIdImpl> endMessageIds = new HashMap<>();
+    // Epoch milliseconds; -1 when not set
+    private long startPublishTime = -1;
+    private long endPublishTime = -1;
+
+    private File exportFile;
+    private MessageExportWriter.EXPORT_FORMAT exportFormat = MessageExportWriter.EXPORT_FORMAT.Ndjson;
+    // Max. number of partitions read at the same time; 0 means all of them
+    private int parallelism = 0;
+
     private PulsarClient pulsarClient;
-    private Consumer<?> pulsarConsumer;
+    private MessageExportWriter exportWriter;
+    // Number of messages that can still be exported, shared by all the partitions ("-numMsg")
+    private AtomicLong msgBudget;
+
+    private final Meter readMeter = metricsRegistry.meter("read.messages");
 
     public ReaderApp(String[] inputParams) {
         super(inputParams);
+
+        addCommandLineOption(new Option("of", "outputFile", true, "Export file."));
+        addCommandLineOption(new Option("fmt", "outputFormat", true,
+                "Export file format: \"" + MessageExportWriter.EXPORT_FORMAT.Ndjson.label + "\" (default) or \"" +
+                MessageExportWriter.EXPORT_FORMAT.Binary.label + "\" (length-prefixed records)."));
+        addCommandLineOption(new Option("smi", "startMessageId", true,
+                "\"earliest\" (default) or the message id(s) to start from (inclusive), comma separated: " +
+                "\"<ledgerId>:<entryId>[:<partitionIndex>]\". The partitions without a message id start from the earliest."));
+        addCommandLineOption(new Option("emi", "endMessageId", true,
+                "Message id(s) to stop at (inclusive), in the same format as \"startMessageId\"."));
+        addCommandLineOption(new Option("st", "startTime", true,
+                "Publish time to start from (epoch time or ISO-8601); can't be used with \"startMessageId\"."));
+        addCommandLineOption(new Option("et", "endTime", true,
+                "Publish time to stop at (inclusive; epoch time or ISO-8601)."));
+        addCommandLineOption(new Option("par", "parallelism", true,
+                "Max. number of partitions read at the same time (default: all of them)."));
     }
 
     public static void main(String[] args) {
         PulsarWorkshopCmdApp workshopApp = new ReaderApp(args);
 
-        int exitCode = workshopApp.run("RedeliveryConsumerApp");
-        
+        int exitCode = workshopApp.run("ReaderApp");
+
         System.exit(exitCode);
     }
 
     @Override
     public void processInputParams() throws InvalidParamException {
-        if (numMsg < 3) {
-        	throw new InvalidParamException("The number of messages to process must be 3 or greater.");
+        // (Required) Export file
+        String exportFileStr = processStringInputParam("of");
+        if (StringUtils.isBlank(exportFileStr)) {
+            throw new InvalidParamException("outputFile", "must be set");
+        }
+        exportFile = new File(exportFileStr);
+
+        // (Optional) Export file format
+        String exportFormatStr = processStringInputParam("fmt");
+        if (StringUtils.isNotBlank(exportFormatStr)) {
+            if (StringUtils.equalsIgnoreCase(exportFormatStr, MessageExportWriter.EXPORT_FORMAT.Binary.label)) {
+                exportFormat = MessageExportWriter.EXPORT_FORMAT.Binary;
+            }
+            else if (!StringUtils.equalsIgnoreCase(exportFormatStr, MessageExportWriter.EXPORT_FORMAT.Ndjson.label)) {
+                throw new InvalidParamException("outputFormat",
+                        "must be either \"" + MessageExportWriter.EXPORT_FORMAT.Ndjson.label +
+                        "\" or \"" + MessageExportWriter.EXPORT_FORMAT.Binary.label + "\"");
+            }
+        }
+
+        // (Optional) Range bounds
+        String startMessageIdStr = processStringInputParam("smi");
+        if (StringUtils.isNotBlank(startMessageIdStr) && !StringUtils.equalsIgnoreCase(startMessageIdStr, EARLIEST_MESSAGE_ID)) {
+            startMessageIds.putAll(parseMessageIds("startMessageId", startMessageIdStr));
+        }
+        endMessageIds.putAll(parseMessageIds("endMessageId", processStringInputParam("emi")));
+        startPublishTime = parsePublishTime("startTime", processStringInputParam("st"));
+        endPublishTime = parsePublishTime("endTime", processStringInputParam("et"));
+        if ((startPublishTime != -1) && !startMessageIds.isEmpty()) {
+            throw new InvalidParamException("startTime", "can't be used together with \"startMessageId\"");
+        }
+        if ((startPublishTime != -1) && (endPublishTime != -1) && (endPublishTime < startPublishTime)) {
+            throw new InvalidParamException("endTime", "must not be before \"startTime\"");
+        }
+
+        // (Optional) Number of partitions read in parallel
+        if (StringUtils.isNotBlank(processStringInputParam("par"))) {
+            parallelism = processIntegerInputParam("par");
+            if (parallelism <= 0) {
+                throw new InvalidParamException("parallelism", "must be a positive integer");
+            }
         }
     }
-    
+
+    // "<ledgerId>:<entryId>[:<partitionIndex>]", comma separated; at most one per partition
+    private static Map<Integer, MessageIdImpl> parseMessageIds(String paramName, String messageIdsStr)
+            throws InvalidParamException {
+        Map<Integer, MessageIdImpl> messageIds = new HashMap<>();
+        if (StringUtils.isBlank(messageIdsStr)) {
+            return messageIds;
+        }
+        for (String messageIdStr : StringUtils.split(messageIdsStr, ',')) {
+            String[] parts = StringUtils.split(messageIdStr.trim(), ':');
+            try {
+                if ((parts.length < 2) || (parts.length > 3)) {
+                    throw new NumberFormatException();
+                }
+                int partitionIndex = (parts.length == 3) ? Integer.parseInt(parts[2]) : -1;
+                MessageIdImpl messageId =
+                        new MessageIdImpl(Long.parseLong(parts[0]), Long.parseLong(parts[1]), partitionIndex);
+                if (messageIds.put(partitionIndex, messageId) != null) {
+                    throw new InvalidParamException(paramName, "more than one message id for partition " + partitionIndex);
+                }
+            }
+            catch (NumberFormatException nfe) {
+                throw new InvalidParamException(paramName,
+                        "invalid message id \"" + messageIdStr + "\" (expected \"<ledgerId>:<entryId>[:<partitionIndex>]\")");
+            }
+        }
+        return messageIds;
+    }
+
+    private static long parsePublishTime(String paramName, String publishTimeStr) throws InvalidParamException {
+        if (StringUtils.isBlank(publishTimeStr)) {
+            return -1;
+        }
+        try {
+            return TimeUnit.MICROSECONDS.toMillis(CommonUtils.parseTimestampToEpochMicros(publishTimeStr));
+        }
+        catch (WorkshopRuntimException wre) {
+            throw new InvalidParamException(paramName, wre.getMessage());
+        }
+    }
+
     @Override
     public void runApp() {
-
         try {
-            PulsarClient pulsarClient = createNativePulsarClient();
-        	MessageId messageId = produceMessages(pulsarClient);
-        	consumeMessages(pulsarClient, messageId);
-        	
+            if (numMsg == -1) {
+                numMsg = Integer.MAX_VALUE;
+            }
+            msgBudget = new AtomicLong(numMsg);
+
+            pulsarClient = createNativePulsarClient();
+            // The partition topics, or the topic itself if it isn't partitioned
+            List<String> partitionTopics = pulsarClient.getPartitionsForTopic(pulsarTopicName).get();
+            int numThreads = (parallelism > 0) ? Math.min(parallelism, partitionTopics.size()) : partitionTopics.size();
+            checkMessageIdPartitions(partitionTopics);
+
+            exportWriter = new MessageExportWriter(exportFile, exportFormat);
+            metricsRegistry.gauge("export.bytesWritten", exportWriter::getBytesWritten);
+            logger.info("Exporting {} partition(s) of topic {} to {} ({}), {} at a time",
+                    partitionTopics.size(), pulsarTopicName, exportFile, exportFormat.label, numThreads);
+
+            List<PartitionExporter> partitionExporters = new ArrayList<>();
+            for (String partitionTopic : partitionTopics) {
+                partitionExporters.add(new PartitionExporter(partitionTopic));
+            }
+
+            long startNanos = System.nanoTime();
+            ExecutorService executorService =
+                    Executors.newFixedThreadPool(numThreads, createAppThreadFactory("partition-reader"));
+            try {
+                for (Future<Long> future : executorService.invokeAll(partitionExporters)) {
+                    future.get();
+                }
+            }
+            finally {
+                executorService.shutdownNow();
+            }
+            logExportSummary(partitionExporters, System.nanoTime() - startNanos);
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            throw new WorkshopRuntimException("Unexpected error when reading Pulsar messages: " +
+                    ((cause != null) ? cause.getMessage() : ee.getMessage()));
+        }
+        catch (PulsarClientException pce) {
+            throw new WorkshopRuntimException("Unexpected error when reading Pulsar messages: " + pce.getMessage());
         }
-        catch (Exception e) {
-        	e.printStackTrace();
-        	throw new WorkshopRuntimException("Unexpected error when consuming Pulsar messages: " + e.getMessage());
+        catch (IOException ioe) {
+            throw new WorkshopRuntimException("Failed to write to the export file: " + ioe.getMessage());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkshopRuntimException("Interrupted while reading Pulsar messages!");
         }
     }
-    
-    private MessageId produceMessages(PulsarClient pulsarClient)
-    					throws Exception {
-    
-
-    	MessageId messageId = null;
-    	
-		MessageId tempId = null;
-		for (int i=0; i < 10; i++) {
-			Producer pulsarProducer = createPulsarProducer(pulsarTopicName, pulsarClient);
-			tempId = pulsarProducer.send(("message " + i).getBytes());
-			
-			// Grab message id half way through the list
-			if (i == numMsg/2) {
-				messageId = tempId;
-			}
-    	}
-		
-    	return messageId;
+
+    // The message ids of unknown partitions would be silently ignored
+    private void checkMessageIdPartitions(List<String> partitionTopics) {
+        List<Integer> partitionIndexes = new ArrayList<>();
+        for (String partitionTopic : partitionTopics) {
+            partitionIndexes.add(TopicName.getPartitionIndex(partitionTopic));
+        }
+        List<Integer> messageIdPartitions = new ArrayList<>(startMessageIds.keySet());
+        messageIdPartitions.addAll(endMessageIds.keySet());
+        for (Integer partitionIndex : messageIdPartitions) {
+            if (!partitionIndexes.contains(partitionIndex)) {
+                throw new WorkshopRuntimException("No partition " + partitionIndex + " in topic " + pulsarTopicName +
+                        " (partition index -1 is for a non-partitioned topic)");
+            }
+        }
     }
-    
-    private void consumeMessages(PulsarClient pulsarClient, MessageId startMessageId)
-    					throws Exception {
-        
-        Reader<byte[]> pulsarReader = (Reader<byte[]>) pulsarClient.newReader()
-        		.topic(pulsarTopicName)
-        		.startMessageId(startMessageId)
-        		.create();
-        		
-        		
-        Message<byte[]> message = pulsarReader.readNext();
-    	System.out.println("########### Reading message " + startMessageId + ": " + new String(message.getData()));
-    	
-        message = pulsarReader.readNext();
-    	System.out.println("########### Reading message " + startMessageId + ": " + new String(message.getData()));
-    	
+
+    private void logExportSummary(List<PartitionExporter> partitionExporters, long elapsedNanos) {
+        double elapsedSec = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+        long exported = readMeter.getCount();
+
+        logger.info("{} messages ({} bytes) exported in {} ms ({} msg/s, {} MB/s)",
+                exported,
+                exportWriter.getBytesWritten(),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                String.format("%.1f", exported / elapsedSec),
+                String.format("%.1f", exportWriter.getBytesWritten() / elapsedSec / (1024 * 1024)));
+        for (PartitionExporter partitionExporter : partitionExporters) {
+            logger.info("  {}: {} messages", partitionExporter.partitionTopic, partitionExporter.exported);
+        }
+    }
+
+    private class PartitionExporter implements Callable<Long> {
+        private final String partitionTopic;
+        private final int partitionIndex;
+        // Read by the main thread once all the exporters are done
+        private volatile long exported = 0;
+
+        PartitionExporter(String partitionTopic) {
+            this.partitionTopic = partitionTopic;
+            this.partitionIndex = TopicName.getPartitionIndex(partitionTopic);
+        }
+
+        @Override
+        public Long call() throws IOException {
+            MessageExportWriter.ExportBuffer exportBuffer = exportWriter.newBuffer();
+            MessageIdImpl endMessageId = endMessageIds.get(partitionIndex);
+
+            try (Reader<byte[]> reader = createPartitionReader()) {
+                while (reader.hasMessageAvailable() && (msgBudget.getAndDecrement() > 0)) {
+                    Message<byte[]> message = reader.readNext(READ_TIMEOUT_SEC, TimeUnit.SECONDS);
+                    if (message == null) {
+                        msgBudget.incrementAndGet();
+                        continue;
+                    }
+                    if (((endPublishTime != -1) && (message.getPublishTime() > endPublishTime)) ||
+                            ((endMessageId != null) && isAfter(message.getMessageId(), endMessageId))) {
+                        msgBudget.incrementAndGet();
+                        break;
+                    }
+
+                    exportBuffer.write(message);
+                    readMeter.mark();
+                    exported++;
+                }
+                exportBuffer.flush();
+            }
+            logger.info("Partition {} exported: {} messages", partitionTopic, exported);
+            return exported;
+        }
+
+        // With the "reader.xxx" settings
+        private Reader<byte[]> createPartitionReader() throws PulsarClientException {
+            ReaderBuilder<byte[]> readerBuilder = createPulsarReaderBuilder(partitionTopic, pulsarClient)
+                    .startMessageId(startMessageIds.getOrDefault(partitionIndex, MessageId.earliest))
+                    .startMessageIdInclusive();
+            if (!getPulsarExtraCfgConf().getReaderConfMapTgt().containsKey("readerName")) {
+                readerBuilder.readerName("reader-" + partitionTopic.replaceAll("[^a-zA-Z0-9_-]", "_"));
+            }
+
+            Reader<byte[]> reader = readerBuilder.create();
+            if (startPublishTime != -1) {
+                reader.seek(startPublishTime);
+            }
+            return reader;
+        }
+    }
+
+    // Entry level comparison, so that all the messages of the end (batch) entry are included
+    private static boolean isAfter(MessageId messageId, MessageIdImpl endMessageId) {
+        MessageIdImpl messageIdImpl = (MessageIdImpl) messageId;
+        if (messageIdImpl.getLedgerId() != endMessageId.getLedgerId()) {
+            return messageIdImpl.getLedgerId() > endMessageId.getLedgerId();
+        }
+        return messageIdImpl.getEntryId() > endMessageId.getEntryId();
     }
 
     @Override
     public void termApp() {
         try {
-            if (pulsarConsumer != null) {
-                pulsarConsumer.close();
+            if (exportWriter != null) {
+                exportWriter.close();
             }
 
             if (pulsarClient != null) {
                 pulsarClient.close();
             }
         }
-        catch (PulsarClientException pce) {
-            throw new WorkshopRuntimException("Failed to terminate Pulsar producer or client!");
+        catch (IOException ioe) {
+            throw new WorkshopRuntimException("Failed to close the export file or the Pulsar client!");
         }
     }
-}
\ No newline at end of file
+}
@@ -3,33 +3,135 @@ package com.example.pulsarworkshop;
 import com.example.pulsarworkshop.common.PulsarWorkshopCmdApp;
 import com.example.pulsarworkshop.common.exception.InvalidParamException;
 import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+import com.example.pulsarworkshop.common.metrics.Counter;
+import com.example.pulsarworkshop.common.metrics.Meter;
+import com.example.pulsarworkshop.common.utils.HashedTimingWheel;
 
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.cli.Option;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.pulsar.client.api.*;
+import org.apache.pulsar.client.impl.MultiplierRedeliveryBackoff;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Negatively acknowledges the received messages so that they are redelivered, until they go
+ * to the dead letter topic. The redelivery settings come from the "consumer.xxx" settings:
+ * "deadLetterPolicy", "negativeAckRedeliveryBackoff", "ackTimeoutMillis", etc.
+ *
+ * With "-nackRatio" below 1, only that share of the processing attempts fails and is
+ * negatively acknowledged (the others are acknowledged), e.g. to measure the redelivery
+ * throughput and the extra dispatch load on the broker in a nack storm.
+ *
+ * With "-localRetries", a failed message is first retried in-process: it's parked in a
+ * hashed timing wheel for its backoff delay, then processed again, without any broker round
+ * trip. Only when the local retries are exhausted does it go back to the broker: to the retry
+ * topic with "consumer.retryEnable=true", negatively acknowledged otherwise. When the parked
+ * messages reach the "-localRetryMemory" budget, the consumer is paused (no new message from
+ * the broker) until half of the budget is freed.
+ */
 public class RedeliveryConsumerApp extends PulsarWorkshopCmdApp {
 
+    private final static Logger logger = LoggerFactory.getLogger(RedeliveryConsumerApp.class);
+
+    // Used when not set in the extra config file
+    private final static int DEFAULT_MAX_REDELIVER_COUNT = 5;
+    private final static int DEFAULT_ACK_TIMEOUT_SEC = 1;
+
+    // Redelivery count distribution: 0, 1, ..., "MAX_REDELIVERY_COUNT_BUCKET" and more
+    private final static int MAX_REDELIVERY_COUNT_BUCKET = 10;
+
+    private final static long RECEIVE_POLL_MS = 100;
+
+    private final static long DEFAULT_LOCAL_RETRY_DELAY_MS = 100;
+    private final static long DEFAULT_LOCAL_RETRY_MAX_DELAY_MS = 5000;
+    private final static long DEFAULT_LOCAL_RETRY_MEMORY = 64L * 1024 * 1024;
+    private final static long TIMING_WHEEL_TICK_MS = 10;
+    private final static int TIMING_WHEEL_SIZE = 512;
+
     private String subsriptionName;
     private PulsarClient pulsarClient;
-    private Consumer<?> pulsarConsumer;
+    private Consumer<byte[]> pulsarConsumer;
 
+    // Overrides the dead letter topic of "consumer.deadLetterPolicy"
     private String deadLetterTopicName;
+    // Share of the processing attempts that fail
+    private double nackRatio = 1.0;
+
+    // Max. number of in-process retries of a failed message; 0 means no local retry
+    private int maxLocalRetries = 0;
+    private long localRetryDelayMs = DEFAULT_LOCAL_RETRY_DELAY_MS;
+    private long localRetryMaxDelayMs = DEFAULT_LOCAL_RETRY_MAX_DELAY_MS;
+    // Max. total payload size of the parked messages
+    private long localRetryMemory = DEFAULT_LOCAL_RETRY_MEMORY;
+
+    // Only used with local retries
+    private RedeliveryBackoff localRetryBackoff;
+    private HashedTimingWheel<LocalRetry> localRetryWheel;
+    private final LinkedBlockingQueue<LocalRetry> dueLocalRetries = new LinkedBlockingQueue<>();
+    // Total payload size of the parked messages (also read by the metrics reporter)
+    private final AtomicLong parkedBytes = new AtomicLong();
+    private boolean consumerPaused = false;
+    // "consumer.retryEnable": the exhausted messages go to the retry topic
+    private boolean retryTopicEnabled = false;
+
+    private static class LocalRetry {
+        final Message<byte[]> message;
+        // Number of the local retry (1 based)
+        final int attempt;
+
+        LocalRetry(Message<byte[]> message, int attempt) {
+            this.message = message;
+            this.attempt = attempt;
+        }
+    }
+
+    private final Meter receiveMeter = metricsRegistry.meter("receive.messages");
+    private final Meter redeliveryMeter = metricsRegistry.meter("receive.redelivered");
+    private final Meter ackMeter = metricsRegistry.meter("ack.messages");
+    private final Meter nackMeter = metricsRegistry.meter("nack.messages");
+    private final Counter receiveErrorCounter = metricsRegistry.counter("receive.errors");
+    private final Meter localRetryMeter = metricsRegistry.meter("retry.local.scheduled");
+    private final Meter localRetrySuccessMeter = metricsRegistry.meter("retry.local.succeeded");
+    private final Counter localRetryExhaustedCounter = metricsRegistry.counter("retry.local.exhausted");
+    private final Counter consumerPauseCounter = metricsRegistry.counter("receive.paused");
+    private final Meter retryTopicMeter = metricsRegistry.meter("retry.topic.messages");
 
     public RedeliveryConsumerApp(String[] inputParams) {
         super(inputParams);
 
         addCommandLineOption(new Option("sbn", "subName", true, "Pulsar subscription name."));
-        addCommandLineOption(new Option("dlt", "deadLetterTopic", true, 
+        addCommandLineOption(new Option("dlt", "deadLetterTopic", true,
         			"Pulsar dead letter topic where message go if redelivery fails."));
+        addCommandLineOption(new Option("nr", "nackRatio", true,
+                "Share (0 to 1) of the processing attempts that fail and are negatively acknowledged " +
+                "(after the local retries, if any); the others are acknowledged (default: 1, all of them)."));
+        addCommandLineOption(new Option("lr", "localRetries", true,
+                "Max. number of in-process retries of a failed message before it goes back to the broker " +
+                "(default: 0, no local retry)."));
+        addCommandLineOption(new Option("lrd", "localRetryDelay", true,
+                "(Local retries only) Delay in ms before the first local retry, doubled at each retry " +
+                "(default: " + DEFAULT_LOCAL_RETRY_DELAY_MS + ")."));
+        addCommandLineOption(new Option("lrx", "localRetryMaxDelay", true,
+                "(Local retries only) Max. delay in ms between two local retries " +
+                "(default: " + DEFAULT_LOCAL_RETRY_MAX_DELAY_MS + ")."));
+        addCommandLineOption(new Option("lrm", "localRetryMemory", true,
+                "(Local retries only) Max. total payload bytes of the messages waiting for a local retry; " +
+                "the consumer is paused when it's reached (default: " + DEFAULT_LOCAL_RETRY_MEMORY + ")."));
     }
 
     public static void main(String[] args) {
         PulsarWorkshopCmdApp workshopApp = new RedeliveryConsumerApp(args);
 
         int exitCode = workshopApp.run("RedeliveryConsumerApp");
-        
+
         System.exit(exitCode);
     }
 
@@ -38,46 +140,290 @@ public class RedeliveryConsumerApp extends PulsarWorkshopCmdApp {
         // (Required) Pulsar subscription name
         subsriptionName = processStringInputParam("subName");
 
-        // (Required) Pulsar dead letter topic
+        // (Optional) Pulsar dead letter topic
         deadLetterTopicName = processStringInputParam("dlt");
+
+        // (Optional) Share of the negatively acknowledged deliveries
+        String nackRatioStr = processStringInputParam("nr");
+        if (StringUtils.isNotBlank(nackRatioStr)) {
+            nackRatio = NumberUtils.toDouble(nackRatioStr, -1);
+            if ((nackRatio < 0) || (nackRatio > 1)) {
+                throw new InvalidParamException("nackRatio", "must be a number between 0 and 1");
+            }
+        }
+
+        // (Optional) Local retries
+        if (StringUtils.isNotBlank(processStringInputParam("lr"))) {
+            maxLocalRetries = processIntegerInputParam("lr");
+            if (maxLocalRetries < 0) {
+                throw new InvalidParamException("localRetries", "must be a positive integer (or 0 for no local retry)");
+            }
+        }
+        if (StringUtils.isNotBlank(processStringInputParam("lrd"))) {
+            localRetryDelayMs = processIntegerInputParam("lrd");
+            if (localRetryDelayMs < 0) {
+                throw new InvalidParamException("localRetryDelay", "must be a positive integer");
+            }
+        }
+        if (StringUtils.isNotBlank(processStringInputParam("lrx"))) {
+            localRetryMaxDelayMs = processIntegerInputParam("lrx");
+        }
+        if (localRetryMaxDelayMs < localRetryDelayMs) {
+            throw new InvalidParamException("localRetryMaxDelay", "must not be lower than \"localRetryDelay\"");
+        }
+        String localRetryMemoryStr = processStringInputParam("lrm");
+        if (StringUtils.isNotBlank(localRetryMemoryStr)) {
+            localRetryMemory = NumberUtils.toLong(localRetryMemoryStr, -1);
+            if (localRetryMemory <= 0) {
+                throw new InvalidParamException("localRetryMemory", "must be a positive integer");
+            }
+        }
     }
 
     @Override
     public void runApp() {
 
         try {
-        	
+            if (numMsg == -1) {
+                numMsg = Integer.MAX_VALUE;
+            }
+
+            retryTopicEnabled = Boolean.TRUE.equals(getPulsarExtraCfgConf().getConsumerConfMapTgt().get("retryEnable"));
+            if (maxLocalRetries > 0) {
+                startLocalRetryStage();
+            }
+
             pulsarClient = createNativePulsarClient();
+            pulsarConsumer = createRedeliveryConsumer();
+
+            long deliveries = 0;
+            long[] redeliveryCountDist = new long[MAX_REDELIVERY_COUNT_BUCKET + 1];
+            long startNanos = System.nanoTime();
+
+            // Negative Acknowledge message until re-delivery attempts are exceeded; with local
+            // retries, also wait for the parked messages to be processed
+            while ((deliveries < numMsg) || hasParkedMessages()) {
+                // The due local retries first, so that the parked messages don't pile up
+                LocalRetry localRetry = dueLocalRetries.poll();
+                boolean receiving = (deliveries < numMsg) && !consumerPaused;
+                if ((localRetry == null) && !receiving) {
+                    localRetry = dueLocalRetries.poll(RECEIVE_POLL_MS, TimeUnit.MILLISECONDS);
+                }
+                if (localRetry != null) {
+                    parkedBytes.addAndGet(-localRetry.message.size());
+                    processMessage(localRetry.message, localRetry.attempt);
+                    if (consumerPaused && (parkedBytes.get() <= localRetryMemory / 2)) {
+                        pulsarConsumer.resume();
+                        consumerPaused = false;
+                        logger.info("Local retry memory below half of the budget, consumer resumed");
+                    }
+                    continue;
+                }
+                if (!receiving) {
+                    continue;
+                }
+
+                // Without local retries, nothing else to wait for
+                Message<byte[]> message = (localRetryWheel != null)
+                        ? pulsarConsumer.receive((int) RECEIVE_POLL_MS, TimeUnit.MILLISECONDS)
+                        : pulsarConsumer.receive();
+                if (message == null) {
+                    continue;
+                }
+                deliveries++;
+                receiveMeter.mark();
+
+                int redeliveryCount = message.getRedeliveryCount();
+                if (redeliveryCount > 0) {
+                    redeliveryMeter.mark();
+                }
+                redeliveryCountDist[Math.min(redeliveryCount, MAX_REDELIVERY_COUNT_BUCKET)]++;
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Received message (redelivery count: {}): {}",
+                            redeliveryCount, new String(message.getData()));
+                }
+
+                processMessage(message, 0);
+            }
+
+            logRedeliverySummary(deliveries, redeliveryCountDist, System.nanoTime() - startNanos);
+        }
+        catch (PulsarClientException pce) {
+            receiveErrorCounter.inc();
+            throw new WorkshopRuntimException("Unexpected error when consuming Pulsar messages: " + pce.getMessage());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkshopRuntimException("Interrupted while waiting for the local retries");
+        }
+    }
+
+    private void startLocalRetryStage() {
+        localRetryBackoff = MultiplierRedeliveryBackoff.builder()
+                .minDelayMs(localRetryDelayMs)
+                .maxDelayMs(localRetryMaxDelayMs)
+                .multiplier(2)
+                .build();
+        // The due messages are handed over to the main loop, which does all the processing
+        localRetryWheel = new HashedTimingWheel<>(
+                TIMING_WHEEL_TICK_MS, TimeUnit.MILLISECONDS, TIMING_WHEEL_SIZE, dueLocalRetries::add);
+
+        metricsRegistry.gauge("retry.local.parkedMessages",
+                () -> localRetryWheel.size() + dueLocalRetries.size());
+        metricsRegistry.gauge("retry.local.parkedBytes", parkedBytes::get);
+
+        logger.info("Local retries: max. {} retries, delay {} ms to {} ms, memory budget {} bytes, then {}",
+                maxLocalRetries, localRetryDelayMs, localRetryMaxDelayMs, localRetryMemory,
+                retryTopicEnabled ? "retry topic" : "negative acknowledgement");
+    }
+
+    private boolean hasParkedMessages() {
+        return (localRetryWheel != null) && ((localRetryWheel.size() > 0) || !dueLocalRetries.isEmpty());
+    }
+
+    // "attempt" is the number of the local retry, 0 for a message from the broker
+    private void processMessage(Message<byte[]> message, int attempt) throws PulsarClientException {
+        boolean failed = (nackRatio >= 1) || (ThreadLocalRandom.current().nextDouble() < nackRatio);
+        if (!failed) {
+            pulsarConsumer.acknowledge(message);
+            ackMeter.mark();
+            if (attempt > 0) {
+                localRetrySuccessMeter.mark();
+            }
+            return;
+        }
+
+        if (attempt < maxLocalRetries) {
+            parkedBytes.addAndGet(message.size());
+            localRetryWheel.schedule(new LocalRetry(message, attempt + 1),
+                    localRetryBackoff.next(attempt), TimeUnit.MILLISECONDS);
+            localRetryMeter.mark();
+
+            if (!consumerPaused && (parkedBytes.get() >= localRetryMemory)) {
+                pulsarConsumer.pause();
+                consumerPaused = true;
+                consumerPauseCounter.inc();
+                logger.info("Local retry memory budget reached ({} bytes parked), consumer paused", parkedBytes.get());
+            }
+            return;
+        }
+
+        // Local retries exhausted (if any): back to the broker
+        if (maxLocalRetries > 0) {
+            localRetryExhaustedCounter.inc();
+        }
+        if (retryTopicEnabled) {
+            pulsarConsumer.reconsumeLater(message, localRetryMaxDelayMs, TimeUnit.MILLISECONDS);
+            retryTopicMeter.mark();
+        }
+        else {
+            pulsarConsumer.negativeAcknowledge(message);
+            nackMeter.mark();
+        }
+    }
+
+    // Shared subscription with the "consumer.xxx" settings; a dead letter policy is always set
+    private Consumer<byte[]> createRedeliveryConsumer() throws PulsarClientException {
+        ConsumerBuilder<byte[]> consumerBuilder = createPulsarConsumerBuilder(
+                pulsarTopicName, pulsarClient, subsriptionName, SubscriptionType.Shared);
 
-            Consumer<byte[]> pulsarConsumer = pulsarClient.newConsumer()
-                    .ackTimeout(1, TimeUnit.SECONDS)
-                    .topic(pulsarTopicName)
-                    .subscriptionName(subsriptionName)
-                    .subscriptionType(SubscriptionType.Shared)
-                    .enableRetry(true)
-                    .deadLetterPolicy(DeadLetterPolicy.builder()
-                            .maxRedeliverCount(5)
-                            .deadLetterTopic(deadLetterTopicName)
-                            .build())
-                    .subscribe();
-
-        	// Negative Acknowledge message until re-delivery attempts are exceeded
-        	while (true) {
-                Message<byte[]> message = pulsarConsumer.receive();
-            	System.out.println("########### Received message: " + new String(message.getData()));
-            	pulsarConsumer.negativeAcknowledge(message);
-        	}
-        }
-        catch (Exception e) {
-        	e.printStackTrace();
-        	throw new WorkshopRuntimException("Unexpected error when consuming Pulsar messages: " + e.getMessage());
+        Map<String, Object> consumerConfMap = getPulsarExtraCfgConf().getConsumerConfMapTgt();
+        DeadLetterPolicy deadLetterPolicy = (DeadLetterPolicy) consumerConfMap.get("deadLetterPolicy");
+        if ((deadLetterPolicy == null) || StringUtils.isNotBlank(deadLetterTopicName)) {
+            DeadLetterPolicy.DeadLetterPolicyBuilder builder = DeadLetterPolicy.builder()
+                    .maxRedeliverCount(DEFAULT_MAX_REDELIVER_COUNT);
+            if (deadLetterPolicy != null) {
+                builder.maxRedeliverCount(deadLetterPolicy.getMaxRedeliverCount())
+                        .retryLetterTopic(deadLetterPolicy.getRetryLetterTopic())
+                        .deadLetterTopic(deadLetterPolicy.getDeadLetterTopic())
+                        .initialSubscriptionName(deadLetterPolicy.getInitialSubscriptionName());
+            }
+            if (StringUtils.isNotBlank(deadLetterTopicName)) {
+                builder.deadLetterTopic(deadLetterTopicName);
+            }
+            deadLetterPolicy = builder.build();
+            consumerBuilder.deadLetterPolicy(deadLetterPolicy);
+        }
+        // The parked messages stay unacknowledged, so a configured ack timeout must be longer
+        // than all the local retries of a message
+        if (!consumerConfMap.containsKey("ackTimeoutMillis")) {
+            if (maxLocalRetries == 0) {
+                consumerBuilder.ackTimeout(DEFAULT_ACK_TIMEOUT_SEC, TimeUnit.SECONDS);
+            }
+        }
+        else if (maxLocalRetries > 0) {
+            long localRetryMillis = 0;
+            for (int i = 0; i < maxLocalRetries; i++) {
+                localRetryMillis += localRetryBackoff.next(i);
+            }
+            long ackTimeoutMillis = (Long) consumerConfMap.get("ackTimeoutMillis");
+            if (ackTimeoutMillis <= localRetryMillis) {
+                logger.warn("\"ackTimeoutMillis\" ({} ms) is shorter than the local retries ({} ms): " +
+                        "parked messages will be redelivered by the broker", ackTimeoutMillis, localRetryMillis);
+            }
+        }
+
+        logger.info("Dead letter policy: max. redeliver count {}, dead letter topic {}",
+                deadLetterPolicy.getMaxRedeliverCount(),
+                StringUtils.defaultIfBlank(deadLetterPolicy.getDeadLetterTopic(), "<topic>-<subscription>-DLQ"));
+
+        Consumer<byte[]> consumer = consumerBuilder.subscribe();
+        registerClientStats(consumer);
+        return consumer;
+    }
+
+    // Every delivery of a message after the first one is dispatched again by the broker, so
+    // "deliveries per acknowledgement" is the dispatch load factor of the redeliveries
+    private void logRedeliverySummary(long deliveries, long[] redeliveryCountDist, long elapsedNanos) {
+        double elapsedSec = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+        long redeliveries = deliveries - redeliveryCountDist[0];
+
+        logger.info("{} deliveries in {} ms ({} deliveries/s): {} first deliveries, {} redeliveries ({}%); " +
+                        "{} acknowledged ({} msg/s), {} negatively acknowledged",
+                deliveries,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                String.format("%.1f", deliveries / elapsedSec),
+                redeliveryCountDist[0],
+                redeliveries,
+                String.format("%.1f", redeliveries * 100.0 / Math.max(deliveries, 1)),
+                ackMeter.getCount(),
+                String.format("%.1f", ackMeter.getCount() / elapsedSec),
+                nackMeter.getCount());
+        if (ackMeter.getCount() > 0) {
+            logger.info("Dispatch load factor: {} deliveries per acknowledged message",
+                    String.format("%.2f", deliveries / (double) ackMeter.getCount()));
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < redeliveryCountDist.length; i++) {
+            if (redeliveryCountDist[i] > 0) {
+                sb.append((sb.length() > 0) ? ", " : "")
+                        .append(i).append((i == MAX_REDELIVERY_COUNT_BUCKET) ? "+" : "")
+                        .append(": ").append(redeliveryCountDist[i]);
+            }
+        }
+        logger.info("Deliveries by redelivery count: {}", sb);
+
+        if (maxLocalRetries > 0) {
+            logger.info("Local retries: {} scheduled, {} succeeded, {} messages exhausted them ({} sent to the retry topic), " +
+                            "consumer paused {} times",
+                    localRetryMeter.getCount(),
+                    localRetrySuccessMeter.getCount(),
+                    localRetryExhaustedCounter.getCount(),
+                    retryTopicMeter.getCount(),
+                    consumerPauseCounter.getCount());
         }
     }
 
     @Override
     public void termApp() {
         try {
+            if (localRetryWheel != null) {
+                localRetryWheel.close();
+            }
+
             if (pulsarConsumer != null) {
+                unregisterClientStats(pulsarConsumer);
                 pulsarConsumer.close();
             }
 
@@ -89,4 +435,4 @@ public class RedeliveryConsumerApp extends PulsarWorkshopCmdApp {
             throw new WorkshopRuntimException("Failed to terminate Pulsar producer or client!");
         }
     }
-}
\ No newline at end of file
+}
@@ -3,6 +3,8 @@ import com.example.pulsarworkshop.common.PulsarConnCfgConf;
 import com.example.pulsarworkshop.common.PulsarWorkshopCmdApp;
 import com.example.pulsarworkshop.common.exception.InvalidParamException;
 import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+import com.example.pulsarworkshop.common.metrics.Counter;
+import com.example.pulsarworkshop.common.metrics.Meter;
 import com.fasterxml.jackson.annotation.JsonTypeInfo.As;
 
 import org.apache.commons.cli.Option;
@@ -35,6 +37,9 @@ public class S4RQueueConsumer extends PulsarWorkshopCmdApp {
     int MsgReceived = 0;
     File rabbitmqConnfFile;
     Boolean AstraInUse;
+    // Auto-acknowledged on delivery
+    Meter receiveMeter = metricsRegistry.meter("receive.messages");
+    Counter receiveErrorCounter = metricsRegistry.counter("receive.errors");
 
     public S4RQueueConsumer(String[] inputParams) {
         super(inputParams);
@@ -92,6 +97,7 @@ public class S4RQueueConsumer extends PulsarWorkshopCmdApp {
                         // process the message
                         logger.info("SR4 Consumer received message count: " + MsgReceived + " Message: " + message);
                         MsgReceived++;
+                        receiveMeter.mark();
                  }
             };
             channel.basicConsume(S4RQueueName, true, consumer);
@@ -100,6 +106,7 @@ public class S4RQueueConsumer extends PulsarWorkshopCmdApp {
                 Thread.sleep(2000);    
             }
         } catch (Exception e) {
+            receiveErrorCounter.inc();
             throw new WorkshopRuntimException("Unexpected error when consuming S4R messages: " + e.getMessage());   
         }
     }
@@ -8,6 +8,10 @@ import com.example.pulsarworkshop.common.PulsarConnCfgConf;
 import com.example.pulsarworkshop.common.PulsarWorkshopCmdApp;
 import com.example.pulsarworkshop.common.exception.InvalidParamException;
 import com.example.pulsarworkshop.common.exception.WorkshopRuntimException;
+import com.example.pulsarworkshop.common.metrics.Counter;
+import com.example.pulsarworkshop.common.metrics.Meter;
+import com.example.pulsarworkshop.common.utils.LatencyRecorder;
+import com.example.pulsarworkshop.common.utils.TokenBucketRateLimiter;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Connection;
@@ -30,6 +34,10 @@ public class S4RQueueProducer extends PulsarWorkshopCmdApp {
     Channel channel;
     File rabbitmqConnfFile;
     Boolean AstraInUse;
+    // Publish latency (incl. the broker confirm), measured from the intended send time
+    LatencyRecorder publishLatencyRecorder = metricsRegistry.histogram("send.latency");
+    Meter sendMeter = metricsRegistry.meter("send.messages");
+    Counter sendErrorCounter = metricsRegistry.counter("send.errors");
 
     public S4RQueueProducer(String[] inputParams) {
         super(inputParams);
@@ -86,8 +94,10 @@ public class S4RQueueProducer extends PulsarWorkshopCmdApp {
             channel = connection.createChannel();
             channel.confirmSelect();
             channel.queueDeclare(S4RQueueName, true, false, false, null);
+            TokenBucketRateLimiter rateLimiter = createRateLimiter();
             int msgSent = 0;
             while (numMsg > msgSent) {
+                long intendedNanos = (rateLimiter != null) ? rateLimiter.acquire() : System.nanoTime();
                 String message = S4RMessage; 
                 channel.basicPublish("", S4RQueueName, null, message.getBytes());
                 if (logger.isDebugEnabled()) {
@@ -95,8 +105,13 @@ public class S4RQueueProducer extends PulsarWorkshopCmdApp {
                 }
                 msgSent++;
                 channel.waitForConfirmsOrDie(5000);  //basically flush after each message published
+                publishLatencyRecorder.recordSince(intendedNanos);
+                sendMeter.mark();
             }
+            logger.info("Publish latency: {}",
+                    LatencyRecorder.getSummaryStr(publishLatencyRecorder.getAccumulatedHistogram()));
         } catch (Exception e) {
+            sendErrorCounter.inc();
             throw new WorkshopRuntimException("Unexpected error when producing S4R messages: " + e.getMessage());  
         }
     }
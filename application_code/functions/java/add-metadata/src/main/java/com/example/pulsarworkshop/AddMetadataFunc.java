@@ -46,9 +46,15 @@ public class AddMetadataFunc implements Function<String, Void> {
         if (keyOpt.isPresent()) {
             messageBuilder.key(keyOpt.get());
         }
+        // the copied properties include the producer's send timestamp ("e2eSendTimeMicros"),
+        // so the end-to-end latency measured by the consumer includes this function
         for (String propKey : msgProperties.keySet()) {
             messageBuilder.property(propKey, msgProperties.get(propKey));
         }
+        Optional<Long> eventTimeOpt = currentRecord.getEventTime();
+        if (eventTimeOpt.isPresent()) {
+            messageBuilder.eventTime(eventTimeOpt.get());
+        }
         // a newly added custom metadata
         messageBuilder.property("MyCustomProp",
                 getRandomWord() + "-" + timeFormat.format(Calendar.getInstance().getTime()) );